@@ -0,0 +1,257 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class exports the RoomBookings, RoomUpdatesLog and RoomRepairs rows
+ * of hotels over a date range into gzip compressed files, one file per
+ * hotel and table, exported in parallel.
+ *
+ * Rows are streamed through a server side cursor FETCH_ROWS at a time and
+ * written straight to the file, so memory use does not grow with the size
+ * of the export.  Two formats are written:
+ *
+ *   csv  a header line and one line per row, quoted like COPY ... CSV
+ *   col  column blocks: int magic, int columns, the column names (UTF),
+ *        then per fetched batch int rows followed by each column's values
+ *        (byte 0 for NULL or byte 1 and the UTF value), ended by int 0
+ *
+ */
+public class BulkExport {
+
+   public static final String CSV = "csv";
+   public static final String COLUMNAR = "col";
+
+   private static final int COLUMNAR_MAGIC = 0x48434f4c; // "HCOL"
+
+   private static final int FETCH_ROWS = 1000;
+   private static final int THREADS = 4;
+   private static final int BUFFER_BYTES = 1 << 16;
+
+   // exported tables with the condition selecting the rows between the
+   // days %1$s and %2$s, repairs are exported when their window overlaps
+   private static final String[][] TABLES = {
+      { "RoomBookings", "bookingDate >= '%1$s' AND bookingDate < date '%2$s' + 1" },
+      { "RoomUpdatesLog", "updatedOn >= '%1$s' AND updatedOn < date '%2$s' + 1" },
+      { "RoomRepairs", "COALESCE(repairEndDate, repairDate) >= '%1$s' AND repairDate < date '%2$s' + 1" }
+   };
+
+   /**
+    * Exports the given hotels.
+    *
+    * @param router the shards the hotels live on
+    * @param hotelIDs the hotels to export
+    * @param startDate the first 'yyyy-MM-dd' day to export
+    * @param endDate the last 'yyyy-MM-dd' day to export
+    * @param format CSV or COLUMNAR
+    * @param dir the directory the files are written to
+    * @return the number of rows written per file
+    * @throws java.lang.Exception when an export failed, the files already
+    *         written by this export are deleted
+    */
+   public static List<String> export(final ShardRouter router, List<Integer> hotelIDs, final String startDate, final String endDate,
+                                     final String format, final File dir) throws Exception {
+      if (!CSV.equals(format) && !COLUMNAR.equals(format))
+         throw new IllegalArgumentException("Unknown export format: " + format);
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Cannot create " + dir);
+
+      ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+      try{
+         List<Future<String>> futures = new ArrayList<Future<String>>();
+         List<File> files = new ArrayList<File>();
+         for (final Integer hotelID : hotelIDs){
+            final int shard = router.shardOf(hotelID);
+            for (final String[] table : TABLES){
+               final File file = new File(dir, table[0] + "_hotel" + hotelID + "." + format + ".gz");
+               files.add(file);
+               futures.add(pool.submit(new Callable<String>() {
+                  public String call() throws Exception {
+                     String query = String.format("SELECT * FROM %s WHERE hotelID = %d AND %s",
+                        table[0], hotelID, String.format(table[1], startDate, endDate));
+                     long rows = exportQuery(router, shard, query, format, file);
+                     return file.getPath() + "\t" + rows;
+                  }
+               }));
+            }//end for
+         }//end for
+
+         try{
+            List<String> written = new ArrayList<String>();
+            for (Future<String> future : futures)
+               written.add(future.get());
+            return written;
+         }catch (ExecutionException e){
+            // skip the exports not started, let the running ones end, since
+            // JDBC calls are not interrupted, and delete every file written
+            for (int i = 0; i < futures.size(); i++){
+               if (futures.get(i).cancel(false))
+                  continue;
+               try{
+                  futures.get(i).get();
+               }catch (ExecutionException ignored){
+                  // its file is already deleted.
+               }//end try
+               files.get(i).delete();
+            }//end for
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+         }//end try
+      }finally{
+         pool.shutdownNow();
+      }//end try
+   }//end export
+
+   /**
+    * Streams the rows of one query on its own connection into a file.  The
+    * file is deleted when the export fails.
+    *
+    * @return the number of rows written
+    */
+   private static long exportQuery(ShardRouter router, int shard, String query, String format, File file) throws SQLException, IOException {
+      Connection connection = router.openConnection(shard);
+      OutputStream fileOut = null;
+      boolean done = false;
+      try{
+         fileOut = new FileOutputStream(file);
+         // cursors only live inside a transaction
+         connection.setAutoCommit(false);
+         Statement stmt = connection.createStatement ();
+         stmt.execute ("DECLARE export_cursor CURSOR FOR " + query);
+
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(fileOut, BUFFER_BYTES), BUFFER_BYTES));
+         fileOut = out;
+         long rows = 0;
+         boolean header = true;
+         while (true){
+            ResultSet rs = stmt.executeQuery ("FETCH FORWARD " + FETCH_ROWS + " FROM export_cursor");
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            int numCol = rsmd.getColumnCount ();
+            if (header){
+               writeHeader(out, rsmd, format);
+               header = false;
+            }//end if
+            int fetched = CSV.equals(format) ? writeCsv(out, rs, numCol) : writeColumns(out, rs, numCol);
+            rs.close();
+            rows += fetched;
+            if (fetched < FETCH_ROWS)
+               break;
+         }//end while
+         if (COLUMNAR.equals(format))
+            out.writeInt(0);
+         out.close();
+
+         stmt.execute ("CLOSE export_cursor");
+         stmt.close ();
+         connection.commit();
+         done = true;
+         return rows;
+      }finally{
+         try{
+            if (fileOut != null)
+               fileOut.close();
+         }catch (IOException e){
+            done = false;
+         }//end try
+         connection.close();
+         if (!done)
+            file.delete();
+      }//end try
+   }//end exportQuery
+
+   private static void writeHeader(DataOutputStream out, ResultSetMetaData rsmd, String format) throws SQLException, IOException {
+      int numCol = rsmd.getColumnCount ();
+      if (CSV.equals(format)){
+         StringBuilder line = new StringBuilder();
+         for (int i=1; i<=numCol; ++i)
+            line.append(i > 1 ? "," : "").append(csv(rsmd.getColumnName(i)));
+         out.write(line.append('\n').toString().getBytes("UTF-8"));
+      }else{
+         out.writeInt(COLUMNAR_MAGIC);
+         out.writeInt(numCol);
+         for (int i=1; i<=numCol; ++i)
+            out.writeUTF(rsmd.getColumnName(i));
+      }//end if
+   }//end writeHeader
+
+   private static int writeCsv(DataOutputStream out, ResultSet rs, int numCol) throws SQLException, IOException {
+      int rows = 0;
+      StringBuilder line = new StringBuilder();
+      while (rs.next()){
+         line.setLength(0);
+         for (int i=1; i<=numCol; ++i){
+            if (i > 1)
+               line.append(',');
+            String value = rs.getString(i);
+            if (value != null)
+               line.append(csv(value));
+         }//end for
+         out.write(line.append('\n').toString().getBytes("UTF-8"));
+         rows++;
+      }//end while
+      return rows;
+   }//end writeCsv
+
+   /**
+    * Writes one fetched batch column by column.  The batch is at most
+    * FETCH_ROWS rows, which is all that is held in memory.
+    */
+   private static int writeColumns(DataOutputStream out, ResultSet rs, int numCol) throws SQLException, IOException {
+      List<String[]> batch = new ArrayList<String[]>();
+      while (rs.next()){
+         String[] record = new String[numCol];
+         for (int i=1; i<=numCol; ++i)
+            record[i - 1] = rs.getString(i);
+         batch.add(record);
+      }//end while
+      if (batch.isEmpty())
+         return 0;
+      out.writeInt(batch.size());
+      for (int i = 0; i < numCol; i++){
+         for (String[] record : batch){
+            if (record[i] == null){
+               out.writeByte(0);
+            }else{
+               out.writeByte(1);
+               out.writeUTF(record[i]);
+            }//end if
+         }//end for
+      }//end for
+      return batch.size();
+   }//end writeColumns
+
+   private static String csv(String value) {
+      // an empty string is quoted, an unquoted empty field is NULL
+      if (value.length() > 0 && value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+         return value;
+      return "\"" + value.replace("\"", "\"\"") + "\"";
+   }//end csv
+}//end BulkExport
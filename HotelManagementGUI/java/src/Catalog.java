@@ -0,0 +1,259 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class serves hotels, room prices and room availability from the
+ * mapped catalog snapshot, kept current by replaying the change feed
+ * events newer than the snapshot into a small on-heap overlay.
+ *
+ * Every SNAPSHOT_MINUTES a fresh snapshot is written and mapped in its
+ * place, and the overlay drops the changes the new snapshot holds.  A
+ * snapshot file older than MAX_SNAPSHOT_MINUTES is not used, its replay
+ * could reach past the events ChangeFeed keeps.  The replay starts at the
+ * snapshot's replayAfter mark, which covers the changes still in flight
+ * while the snapshot was read.
+ *
+ */
+public class Catalog implements ChangeListener {
+
+   // days of past bookings kept in a snapshot
+   private static final int RECENT_DAYS = 90;
+
+   // minutes between two snapshots written by a running application
+   private static final int SNAPSHOT_MINUTES = 15;
+
+   // age beyond which a snapshot file is rewritten instead of mapped
+   private static final int MAX_SNAPSHOT_MINUTES = 60;
+
+   private volatile CatalogSnapshot _snapshot;
+
+   // latest room price change since the snapshot, by room key
+   private final ConcurrentHashMap<Long, Change> _prices = new ConcurrentHashMap<Long, Change>();
+
+   // bookings since the snapshot by room number, by hotel and day key
+   private final ConcurrentHashMap<Long, ConcurrentHashMap<Integer, Change>> _booked = new ConcurrentHashMap<Long, ConcurrentHashMap<Integer, Change>>();
+
+   /**
+    * A value of the overlay with the event it came from.
+    */
+   private static class Change {
+      final int value;
+      final int shard;
+      final long eventID;
+
+      Change(int value, ChangeEvent event) {
+         this.value = value;
+         this.shard = event.getShard();
+         this.eventID = event.getEventID();
+      }
+
+      boolean isIn(CatalogSnapshot snapshot) {
+         return this.eventID <= snapshot.replayAfter(this.shard);
+      }
+   }//end Change
+
+   private Catalog(CatalogSnapshot snapshot) {
+      this._snapshot = snapshot;
+   }//end Catalog
+
+   /**
+    * Maps the snapshot file, writing it first when there is no usable one,
+    * and starts writing a fresh snapshot every SNAPSHOT_MINUTES.
+    *
+    * @param router the shards the snapshot is taken from
+    * @param file the snapshot file
+    * @return the catalog
+    */
+   public static Catalog open(final ShardRouter router, final File file) throws Exception {
+      CatalogSnapshot snapshot = null;
+      if (file.exists() && System.currentTimeMillis() - file.lastModified() < MAX_SNAPSHOT_MINUTES * 60000L){
+         try{
+            snapshot = CatalogSnapshot.map(file);
+            if (snapshot.shardCount() != router.shardCount())
+               snapshot = null;
+         }catch (IOException e){
+            // written by an older version, replaced below.
+         }//end try
+      }//end if
+      if (snapshot == null){
+         System.out.print("Writing catalog snapshot...");
+         CatalogSnapshot.write(router, file, RECENT_DAYS);
+         snapshot = CatalogSnapshot.map(file);
+         System.out.println("Done");
+      }//end if
+
+      final Catalog catalog = new Catalog(snapshot);
+      ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "catalog-snapshot");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      timer.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try{
+               CatalogSnapshot.write(router, file, RECENT_DAYS);
+               catalog.remap(CatalogSnapshot.map(file));
+            }catch (Exception e){
+               System.err.println ("Catalog snapshot failed: " + e.getMessage ());
+            }//end try
+         }
+      }, SNAPSHOT_MINUTES, SNAPSHOT_MINUTES, TimeUnit.MINUTES);
+      return catalog;
+   }//end open
+
+   /**
+    * Serves from a newer snapshot and drops the overlay entries it holds.
+    * Readers still using the old snapshot keep a valid mapping.
+    */
+   private void remap(CatalogSnapshot snapshot) {
+      this._snapshot = snapshot;
+      for (Map.Entry<Long, Change> price : this._prices.entrySet())
+         if (price.getValue().isIn(snapshot))
+            this._prices.remove(price.getKey(), price.getValue());
+      for (Map.Entry<Long, ConcurrentHashMap<Integer, Change>> day : this._booked.entrySet()){
+         boolean expired = (int) day.getKey().longValue() < snapshot.windowStartDay();
+         for (Map.Entry<Integer, Change> room : day.getValue().entrySet())
+            if (expired || room.getValue().isIn(snapshot))
+               day.getValue().remove(room.getKey(), room.getValue());
+         synchronized (this._booked){
+            if (day.getValue().isEmpty())
+               this._booked.remove(day.getKey(), day.getValue());
+         }//end synchronized
+      }//end for
+   }//end remap
+
+   /**
+    * Returns the eventIDs per shard to subscribe to the change feed after.
+    */
+   public long[] replayAfter() {
+      CatalogSnapshot snapshot = this._snapshot;
+      long[] after = new long[snapshot.shardCount()];
+      for (int i = 0; i < after.length; i++)
+         after[i] = snapshot.replayAfter(i);
+      return after;
+   }//end replayAfter
+
+   public void onChange(ChangeEvent event) {
+      if (ChangeEvent.BOOKING.equals(event.getEventType())){
+         int day = CatalogSnapshot.epochDay(event.getEventDate());
+         if (day < this._snapshot.windowStartDay())
+            return;
+         Long key = key(event.getHotelID(), day);
+         // remap drops emptied days under the same lock
+         synchronized (this._booked){
+            ConcurrentHashMap<Integer, Change> rooms = this._booked.get(key);
+            if (rooms == null){
+               rooms = new ConcurrentHashMap<Integer, Change>();
+               this._booked.put(key, rooms);
+            }//end if
+            rooms.put(event.getRoomNumber(), new Change(event.getRoomNumber(), event));
+         }//end synchronized
+      }else if (ChangeEvent.ROOM_UPDATE.equals(event.getEventType()) && event.getPrice() != null){
+         setPrice(key(event.getHotelID(), event.getRoomNumber()), event);
+      }//end if
+   }//end onChange
+
+   /**
+    * Keeps the later of two price changes of a room, since the changes of
+    * this process can arrive before earlier changes of other processes.
+    */
+   private synchronized void setPrice(Long key, ChangeEvent event) {
+      Change current = this._prices.get(key);
+      if (current == null || event.isAfter(current.shard, current.eventID))
+         this._prices.put(key, new Change(event.getPrice(), event));
+   }//end setPrice
+
+   private static Long key(int a, int b) {
+      return ((long) a << 32) | (b & 0xffffffffL);
+   }
+
+   /**
+    * Returns the current price of a room, or null when the room is not in
+    * the catalog.
+    */
+   public Integer roomPrice(int hotelID, int roomNumber) {
+      return roomPrice(this._snapshot, hotelID, roomNumber);
+   }
+
+   private Integer roomPrice(CatalogSnapshot snapshot, int hotelID, int roomNumber) {
+      Change price = this._prices.get(key(hotelID, roomNumber));
+      if (price != null)
+         return price.value;
+      int i = snapshot.firstRoom(hotelID, roomNumber);
+      if (i < snapshot.roomCount() && snapshot.roomHotelID(i) == hotelID && snapshot.roomNumber(i) == roomNumber)
+         return snapshot.roomPrice(i);
+      return null;
+   }//end roomPrice
+
+   /**
+    * Returns the names of the hotels within the given distance, computed
+    * the same way as the calculate_distance SQL function.
+    */
+   public QueryResult hotelsWithin(double latitude, double longitude, double distance) {
+      CatalogSnapshot snapshot = this._snapshot;
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (int i = 0; i < snapshot.hotelCount(); i++){
+         double t1 = (latitude - snapshot.latitude(i)) * (latitude - snapshot.latitude(i));
+         double t2 = (longitude - snapshot.longitude(i)) * (longitude - snapshot.longitude(i));
+         if (Math.sqrt(t1 + t2) < distance)
+            rows.add(Arrays.asList(snapshot.hotelName(i)));
+      }//end for
+      return new QueryResult(Arrays.asList("hotelname"), rows);
+   }//end hotelsWithin
+
+   /**
+    * Returns the number and price of the rooms of a hotel that are free on
+    * the given 'yyyy-MM-dd' date, or null when the catalog cannot tell
+    * because the date is older than the snapshot's bookings or the hotel is
+    * not in the catalog.
+    */
+   public QueryResult availableRooms(int hotelID, String date) {
+      CatalogSnapshot snapshot = this._snapshot;
+      int day = CatalogSnapshot.epochDay(date);
+      int first = snapshot.firstRoom(hotelID, Integer.MIN_VALUE);
+      if (day < snapshot.windowStartDay() || first >= snapshot.roomCount() || snapshot.roomHotelID(first) != hotelID)
+         return null;
+
+      Set<Integer> booked = new HashSet<Integer>();
+      for (int i = snapshot.firstBooking(hotelID, day); i < snapshot.bookingCount()
+            && snapshot.bookingHotelID(i) == hotelID && snapshot.bookingDay(i) == day; i++)
+         booked.add(snapshot.bookingRoomNumber(i));
+      Map<Integer, Change> recent = this._booked.get(key(hotelID, day));
+      if (recent != null)
+         booked.addAll(recent.keySet());
+
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (int i = first; i < snapshot.roomCount() && snapshot.roomHotelID(i) == hotelID; i++){
+         int roomNumber = snapshot.roomNumber(i);
+         if (!booked.contains(roomNumber))
+            rows.add(Arrays.asList(String.valueOf(roomNumber), String.valueOf(roomPrice(snapshot, hotelID, roomNumber))));
+      }//end for
+      return new QueryResult(Arrays.asList("roomnumber", "price"), rows);
+   }//end availableRooms
+}//end Catalog
@@ -0,0 +1,352 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.TimeZone;
+
+/**
+ * This class writes and reads the binary catalog snapshot: the Hotel and
+ * Rooms tables and the recent RoomBookings of all shards in one file that
+ * is read through a read-only memory mapping, so a starting application
+ * can serve from it without loading anything onto the heap.
+ *
+ * Layout (big-endian, as written by DataOutputStream):
+ *
+ *   header   int magic, int version, int windowStartDay, int shardCount,
+ *            long highWater[shardCount], long replayAfter[shardCount],
+ *            int hotels, int rooms, int bookings
+ *   hotels   int hotelID, double latitude, double longitude,
+ *            int managerUserID, byte name[30], 2 bytes padding
+ *            sorted by hotelID
+ *   rooms    int hotelID, int roomNumber, int price
+ *            sorted by hotelID, roomNumber
+ *   bookings int bookingID, int customerID, int hotelID, int roomNumber,
+ *            int bookingDay
+ *            sorted by hotelID, bookingDay, roomNumber
+ *
+ * Dates are days since 1970-01-01.  highWater is the last ChangeOutbox
+ * eventID of each shard included in the snapshot.  Changes are replayed
+ * from the change feed after replayAfter, the last eventID before the
+ * first one that had not committed when the snapshot was read, looking
+ * back ChangeFeed.LATE_COMMIT_MILLIS; a change that takes longer to commit
+ * is given up by the feed as well.
+ *
+ */
+public class CatalogSnapshot {
+
+   private static final int MAGIC = 0x48434154; // "HCAT"
+   private static final int VERSION = 2;
+
+   private static final int NAME_BYTES = 30;
+   private static final int HOTEL_BYTES = 4 + 8 + 8 + 4 + NAME_BYTES + 2;
+   private static final int ROOM_BYTES = 3 * 4;
+   private static final int BOOKING_BYTES = 5 * 4;
+
+   private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+   private final MappedByteBuffer _buffer;
+   private final int _windowStartDay;
+   private final long[] _highWater;
+   private final long[] _replayAfter;
+   private final int _hotels, _rooms, _bookings;
+   private final int _hotelsAt, _roomsAt, _bookingsAt;
+
+   private CatalogSnapshot(MappedByteBuffer buffer) throws IOException {
+      this._buffer = buffer;
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+         throw new IOException("Not a catalog snapshot");
+      this._windowStartDay = buffer.getInt(8);
+      int shards = buffer.getInt(12);
+      this._highWater = new long[shards];
+      this._replayAfter = new long[shards];
+      for (int i = 0; i < shards; i++){
+         this._highWater[i] = buffer.getLong(16 + 8 * i);
+         this._replayAfter[i] = buffer.getLong(16 + 8 * (shards + i));
+      }//end for
+      int at = 16 + 16 * shards;
+      this._hotels = buffer.getInt(at);
+      this._rooms = buffer.getInt(at + 4);
+      this._bookings = buffer.getInt(at + 8);
+      this._hotelsAt = at + 12;
+      this._roomsAt = this._hotelsAt + this._hotels * HOTEL_BYTES;
+      this._bookingsAt = this._roomsAt + this._rooms * ROOM_BYTES;
+      if (this._bookingsAt + (long) this._bookings * BOOKING_BYTES != buffer.capacity())
+         throw new IOException("Truncated catalog snapshot");
+   }//end CatalogSnapshot
+
+   /**
+    * Maps a snapshot file.  The mapping stays valid when the file is later
+    * replaced by a newer snapshot.
+    *
+    * @param file the snapshot file
+    * @return the mapped snapshot
+    * @throws java.io.IOException when the file is missing or not a snapshot
+    */
+   public static CatalogSnapshot map(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try{
+         FileChannel channel = raf.getChannel();
+         return new CatalogSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }finally{
+         raf.close();
+      }//end try
+   }//end map
+
+   public int shardCount() { return this._highWater.length; }
+
+   public long highWater(int shard) { return this._highWater[shard]; }
+
+   // changes after this eventID may be missing from the snapshot
+   public long replayAfter(int shard) { return this._replayAfter[shard]; }
+
+   // first bookingDay included, older bookings are not in the snapshot
+   public int windowStartDay() { return this._windowStartDay; }
+
+   public int hotelCount() { return this._hotels; }
+
+   public int hotelID(int i) { return this._buffer.getInt(this._hotelsAt + i * HOTEL_BYTES); }
+
+   public double latitude(int i) { return this._buffer.getDouble(this._hotelsAt + i * HOTEL_BYTES + 4); }
+
+   public double longitude(int i) { return this._buffer.getDouble(this._hotelsAt + i * HOTEL_BYTES + 12); }
+
+   public int managerUserID(int i) { return this._buffer.getInt(this._hotelsAt + i * HOTEL_BYTES + 20); }
+
+   public String hotelName(int i) {
+      byte[] name = new byte[NAME_BYTES];
+      for (int j = 0; j < NAME_BYTES; j++)
+         name[j] = this._buffer.get(this._hotelsAt + i * HOTEL_BYTES + 24 + j);
+      return new String(name, java.nio.charset.Charset.forName("ISO-8859-1")).trim();
+   }//end hotelName
+
+   public int roomCount() { return this._rooms; }
+
+   public int roomHotelID(int i) { return this._buffer.getInt(this._roomsAt + i * ROOM_BYTES); }
+
+   public int roomNumber(int i) { return this._buffer.getInt(this._roomsAt + i * ROOM_BYTES + 4); }
+
+   public int roomPrice(int i) { return this._buffer.getInt(this._roomsAt + i * ROOM_BYTES + 8); }
+
+   public int bookingCount() { return this._bookings; }
+
+   public int bookingID(int i) { return this._buffer.getInt(this._bookingsAt + i * BOOKING_BYTES); }
+
+   public int bookingCustomerID(int i) { return this._buffer.getInt(this._bookingsAt + i * BOOKING_BYTES + 4); }
+
+   public int bookingHotelID(int i) { return this._buffer.getInt(this._bookingsAt + i * BOOKING_BYTES + 8); }
+
+   public int bookingRoomNumber(int i) { return this._buffer.getInt(this._bookingsAt + i * BOOKING_BYTES + 12); }
+
+   public int bookingDay(int i) { return this._buffer.getInt(this._bookingsAt + i * BOOKING_BYTES + 16); }
+
+   /**
+    * Returns the index of the first room of a hotel with a room number not
+    * below the given one, or roomCount() when there is none.
+    */
+   public int firstRoom(int hotelID, int roomNumber) {
+      int lo = 0, hi = this._rooms;
+      while (lo < hi){
+         int mid = (lo + hi) >>> 1;
+         int h = roomHotelID(mid);
+         if (h < hotelID || (h == hotelID && roomNumber(mid) < roomNumber))
+            lo = mid + 1;
+         else
+            hi = mid;
+      }//end while
+      return lo;
+   }//end firstRoom
+
+   /**
+    * Returns the index of the first booking of a hotel on or after the
+    * given day, or bookingCount() when there is none.
+    */
+   public int firstBooking(int hotelID, int day) {
+      int lo = 0, hi = this._bookings;
+      while (lo < hi){
+         int mid = (lo + hi) >>> 1;
+         int h = bookingHotelID(mid);
+         if (h < hotelID || (h == hotelID && bookingDay(mid) < day))
+            lo = mid + 1;
+         else
+            hi = mid;
+      }//end while
+      return lo;
+   }//end firstBooking
+
+   /**
+    * Converts a 'yyyy-MM-dd' date to days since 1970-01-01.
+    */
+   public static int epochDay(String date) {
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      try{
+         return (int) (format.parse(date.trim()).getTime() / MILLIS_PER_DAY);
+      }catch (ParseException e){
+         throw new IllegalArgumentException("Invalid date: " + date);
+      }//end try
+   }//end epochDay
+
+   /**
+    * Converts days since 1970-01-01 to a 'yyyy-MM-dd' date.
+    */
+   public static String date(int epochDay) {
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return format.format(new java.util.Date(epochDay * MILLIS_PER_DAY));
+   }//end date
+
+   /**
+    * Writes a new snapshot of all shards.  Every shard is read in one
+    * serializable transaction, so its rows and its outbox high-water mark
+    * agree.  The file is written next to the target and renamed over it,
+    * so readers only ever see a complete snapshot.
+    *
+    * @param router the shards to read
+    * @param file the snapshot file
+    * @param recentDays how many days of past bookings to include
+    */
+   public static void write(ShardRouter router, File file, int recentDays) throws SQLException, IOException {
+      int windowStartDay = (int) (System.currentTimeMillis() / MILLIS_PER_DAY) - recentDays;
+      String windowStart = date(windowStartDay);
+      long[] highWater = new long[router.shardCount()];
+      long[] replayAfter = new long[highWater.length];
+      List<Object[]> hotels = new ArrayList<Object[]>();
+      List<int[]> rooms = new ArrayList<int[]>();
+      List<int[]> bookings = new ArrayList<int[]>();
+
+      for (int shard = 0; shard < highWater.length; shard++){
+         Connection connection = router.openConnection(shard);
+         try{
+            connection.setAutoCommit(false);
+            connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            Statement stmt = connection.createStatement ();
+
+            ResultSet rs = stmt.executeQuery ("SELECT COALESCE(MAX(eventID), 0) FROM ChangeOutbox");
+            rs.next();
+            highWater[shard] = rs.getLong(1);
+
+            // eventIDs below the last one created before the look back
+            // window are settled; replay from the first gap above it
+            rs = stmt.executeQuery (String.format("SELECT COALESCE(MAX(eventID), 0) FROM ChangeOutbox WHERE createdOn < now() - interval '%d seconds'",
+               ChangeFeed.LATE_COMMIT_MILLIS / 1000));
+            rs.next();
+            replayAfter[shard] = rs.getLong(1);
+            if (replayAfter[shard] > 0){
+               rs = stmt.executeQuery (String.format("SELECT MIN(eventID) FROM ChangeOutbox o WHERE eventID >= %d AND NOT EXISTS"
+                  + " (SELECT 1 FROM ChangeOutbox n WHERE n.eventID = o.eventID + 1)", replayAfter[shard]));
+               rs.next();
+               replayAfter[shard] = rs.getLong(1);
+            }//end if
+
+            rs = stmt.executeQuery ("SELECT hotelID, latitude, longitude, managerUserID, hotelName FROM Hotel");
+            while (rs.next()){
+               double latitude = rs.getDouble(2);
+               if (rs.wasNull()) latitude = Double.NaN;
+               double longitude = rs.getDouble(3);
+               if (rs.wasNull()) longitude = Double.NaN;
+               hotels.add(new Object[] { rs.getInt(1), latitude, longitude, rs.getInt(4), rs.getString(5) });
+            }//end while
+
+            rs = stmt.executeQuery ("SELECT hotelID, roomNumber, price FROM Rooms");
+            while (rs.next())
+               rooms.add(new int[] { rs.getInt(1), rs.getInt(2), rs.getInt(3) });
+
+            rs = stmt.executeQuery (String.format("SELECT bookingID, customerID, hotelID, roomNumber, bookingDate FROM RoomBookings WHERE bookingDate >= '%s'", windowStart));
+            while (rs.next())
+               bookings.add(new int[] { rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), epochDay(rs.getString(5)) });
+
+            stmt.close ();
+            connection.commit();
+         }finally{
+            connection.close();
+         }//end try
+      }//end for
+
+      Collections.sort(hotels, new Comparator<Object[]>() {
+         public int compare(Object[] a, Object[] b) { return compareInts((Integer) a[0], (Integer) b[0]); }
+      });
+      Collections.sort(rooms, new Comparator<int[]>() {
+         public int compare(int[] a, int[] b) {
+            return a[0] != b[0] ? compareInts(a[0], b[0]) : compareInts(a[1], b[1]);
+         }
+      });
+      Collections.sort(bookings, new Comparator<int[]>() {
+         public int compare(int[] a, int[] b) {
+            if (a[2] != b[2]) return compareInts(a[2], b[2]);
+            return a[4] != b[4] ? compareInts(a[4], b[4]) : compareInts(a[3], b[3]);
+         }
+      });
+
+      File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + "." + System.nanoTime() + ".tmp");
+      FileOutputStream fos = new FileOutputStream(tmp);
+      try{
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(windowStartDay);
+         out.writeInt(highWater.length);
+         for (long hw : highWater)
+            out.writeLong(hw);
+         for (long after : replayAfter)
+            out.writeLong(after);
+         out.writeInt(hotels.size());
+         out.writeInt(rooms.size());
+         out.writeInt(bookings.size());
+         for (Object[] hotel : hotels){
+            out.writeInt((Integer) hotel[0]);
+            out.writeDouble((Double) hotel[1]);
+            out.writeDouble((Double) hotel[2]);
+            out.writeInt((Integer) hotel[3]);
+            byte[] name = new byte[NAME_BYTES + 2];
+            java.util.Arrays.fill(name, 0, NAME_BYTES, (byte) ' ');
+            byte[] value = hotel[4] == null ? new byte[0] : ((String) hotel[4]).getBytes("ISO-8859-1");
+            System.arraycopy(value, 0, name, 0, Math.min(value.length, NAME_BYTES));
+            out.write(name);
+         }//end for
+         for (int[] room : rooms)
+            for (int v : room)
+               out.writeInt(v);
+         for (int[] booking : bookings)
+            for (int v : booking)
+               out.writeInt(v);
+         out.flush();
+         fos.getFD().sync();
+      }finally{
+         fos.close();
+      }//end try
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }//end write
+
+   private static int compareInts(int a, int b) {
+      return a < b ? -1 : (a == b ? 0 : 1);
+   }
+}//end CatalogSnapshot
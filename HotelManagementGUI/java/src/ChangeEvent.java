@@ -0,0 +1,97 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.List;
+
+/**
+ * This class is one row of the ChangeOutbox table: a booking, room update
+ * or repair that was committed on a shard.
+ *
+ */
+public class ChangeEvent {
+
+   public static final String BOOKING = "BOOKING";
+   public static final String ROOM_UPDATE = "ROOM_UPDATE";
+   public static final String REPAIR = "REPAIR";
+
+   // columns of ChangeOutbox in the order ChangeFeed selects them
+   static final String COLUMNS = "eventID, eventType, hotelID, roomNumber, userID, eventDate, price, refID, createdOn, eventEndDate";
+
+   private final int _shard;
+   private final long _eventID;
+   private final String _eventType;
+   private final int _hotelID;
+   private final int _roomNumber;
+   private final int _userID;
+   private final String _eventDate;
+   private final Integer _price;
+   private final int _refID;
+   private final String _createdOn;
+   private final String _eventEndDate;
+
+   ChangeEvent(int shard, List<String> record) {
+      this._shard = shard;
+      this._eventID = Long.parseLong(record.get(0));
+      this._eventType = record.get(1).trim();
+      this._hotelID = Integer.parseInt(record.get(2));
+      this._roomNumber = Integer.parseInt(record.get(3));
+      this._userID = Integer.parseInt(record.get(4));
+      this._eventDate = record.get(5);
+      this._price = record.get(6) == null ? null : Integer.valueOf(record.get(6));
+      this._refID = Integer.parseInt(record.get(7));
+      this._createdOn = record.get(8);
+      this._eventEndDate = record.get(9);
+   }//end ChangeEvent
+
+   // shard the event was committed on, eventIDs are ordered per shard
+   public int getShard() { return this._shard; }
+
+   public long getEventID() { return this._eventID; }
+
+   // BOOKING, ROOM_UPDATE or REPAIR
+   public String getEventType() { return this._eventType; }
+
+   public int getHotelID() { return this._hotelID; }
+
+   public int getRoomNumber() { return this._roomNumber; }
+
+   // the customer for a booking, the manager for a room update or repair
+   public int getUserID() { return this._userID; }
+
+   // 'yyyy-MM-dd' booking or repair date, null for a room update
+   public String getEventDate() { return this._eventDate; }
+
+   // 'yyyy-MM-dd' last day of a repair lasting several days, null otherwise
+   public String getEventEndDate() { return this._eventEndDate; }
+
+   // room price after the change, null for a repair
+   public Integer getPrice() { return this._price; }
+
+   // bookingID, updateNumber or repairID of the changed row
+   public int getRefID() { return this._refID; }
+
+   public String getCreatedOn() { return this._createdOn; }
+
+   /**
+    * Returns true unless this event is an earlier event of the given shard.
+    * Subscribers keeping the latest value of something compare the event
+    * that set it, since events do not always arrive in eventID order.
+    */
+   public boolean isAfter(int shard, long eventID) {
+      return this._shard != shard || this._eventID > eventID;
+   }//end isAfter
+
+   public String toString() {
+      return this._eventType + " #" + this._eventID + "@" + this._shard + " hotel " + this._hotelID + " room " + this._roomNumber;
+   }
+}//end ChangeEvent
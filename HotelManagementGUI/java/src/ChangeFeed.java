@@ -0,0 +1,452 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class tails the ChangeOutbox table of every shard and delivers the
+ * events to in-process subscribers.
+ *
+ * Every mutation of the application inserts its outbox row in the same
+ * transaction and issues NOTIFY change_outbox, see Hotel.executeChange.
+ * The feed keeps one thread and connection per shard which LISTENs for
+ * that notification, reads new events in eventID order in batches and
+ * records how far it got in ChangeFeedOffsets under the consumer name,
+ * which should be unique per running instance.  A consumer that keeps its
+ * name across restarts can resume with subscribe(listener, checkpoints()).
+ *
+ * Events of one shard are delivered in eventID order and at most once to
+ * each subscriber.  Since eventIDs are taken before commit, a transaction
+ * can commit after a later one; the feed waits up to GAP_WAIT_MILLIS for a
+ * missing eventID to show up before it moves on.  The eventIDs it skipped
+ * are logged and looked up again until LATE_COMMIT_MILLIS, and an event
+ * found then is delivered late, out of order.
+ *
+ * The changes of this process are delivered as soon as they commit, see
+ * claim and publish, ahead of the events of other processes, and the feed
+ * threads then skip them.
+ *
+ * Every MAINTENANCE_MILLIS each feed thread also deletes the outbox rows
+ * of its shard that all consumers have read and that are older than
+ * RETAIN_HOURS, which must stay longer than a catalog snapshot may be old
+ * so that its replay finds the events.  Consumers whose checkpoint was not
+ * saved for RETAIN_HOURS are assumed gone and no longer hold rows back.
+ *
+ */
+public class ChangeFeed {
+
+   public static final String CHANNEL = "change_outbox";
+
+   // the statement that wakes the feed, run in the mutating transaction
+   public static final String NOTIFY = "NOTIFY " + CHANNEL;
+
+   // subscribe from the outbox head, i.e. only events committed after start
+   public static final long FROM_HEAD = -1;
+
+   private static final int BATCH_SIZE = 500;
+   private static final long WAKEUP_MILLIS = 250;
+   private static final long RESCAN_MILLIS = 5000;
+   private static final long GAP_WAIT_MILLIS = 5000;
+   private static final long RETRY_MILLIS = 5000;
+   // also how far back a catalog snapshot replays, see CatalogSnapshot.write
+   static final long LATE_COMMIT_MILLIS = 600000;
+   private static final int MAX_SKIPPED = 10000;
+   private static final long MAINTENANCE_MILLIS = 600000;
+   private static final int RETAIN_HOURS = 24;
+   private static final int DELETE_ROWS = 10000;
+
+   private final ShardRouter _router;
+   private final String _consumerName;
+   private final List<Subscription> _subscriptions = new CopyOnWriteArrayList<Subscription>();
+   private final List<Thread> _threads = new ArrayList<Thread>();
+   // events of this process that the feed threads must not deliver again
+   private final Set<Long> _claimed = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+   private volatile boolean _running = false;
+
+   /**
+    * Creates a feed over all the shards of the router.
+    *
+    * @param router the shards to tail
+    * @param consumerName the name the offsets are checkpointed under
+    */
+   public ChangeFeed(ShardRouter router, String consumerName) {
+      this._router = router;
+      this._consumerName = consumerName;
+   }//end ChangeFeed
+
+   /**
+    * Builds the INSERT of an outbox row.  The refID is the current value of
+    * the given sequence, so the insert must follow the insert of the
+    * changed row on the same connection.
+    *
+    * @param eventType one of the ChangeEvent types
+    * @param hotelID the hotel of the changed room
+    * @param roomNumber the changed room
+    * @param userID the customer or manager making the change
+    * @param eventDate the 'yyyy-MM-dd' booking or repair date, or null
+    * @param eventEndDate the 'yyyy-MM-dd' last repair date, or null
+    * @param price an SQL expression for the room price, or null
+    * @param refSequence the sequence of the changed row's key
+    * @return the INSERT statement
+    */
+   public static String outboxInsert(String eventType, String hotelID, String roomNumber, String userID, String eventDate, String eventEndDate, String price, String refSequence) {
+      return String.format("INSERT INTO ChangeOutbox (eventType, hotelID, roomNumber, userID, eventDate, eventEndDate, price, refID) VALUES ('%s', %s, %s, %s, %s, %s, %s, currval('%s'))",
+         eventType, hotelID, roomNumber, userID, eventDate == null ? "NULL" : "'" + eventDate + "'", eventEndDate == null ? "NULL" : "'" + eventEndDate + "'",
+         price == null ? "NULL" : price, refSequence);
+   }//end outboxInsert
+
+   /**
+    * Reads the outbox row that the open transaction of a connection has
+    * just inserted, to publish it once the transaction commits.  While the
+    * feed runs its threads will not deliver that event; if the transaction
+    * rolls back, the claim is dropped when the feed gives up on the eventID.
+    *
+    * @param connection the connection inserting the change, not in auto commit
+    * @param shard the shard of the connection
+    * @return the event of the change
+    * @throws java.sql.SQLException when no outbox row was inserted
+    */
+   public ChangeEvent claim(Connection connection, int shard) throws SQLException {
+      QueryResult rs = QueryResult.fetch(connection, String.format(
+         "SELECT %s FROM ChangeOutbox WHERE eventID = currval('changeoutbox_eventid_seq')", ChangeEvent.COLUMNS));
+      ChangeEvent event = new ChangeEvent(shard, rs.getRows().get(0));
+      if (this._running)
+         this._claimed.add(key(shard, event.getEventID()));
+      return event;
+   }//end claim
+
+   /**
+    * Delivers a claimed event to every subscriber on the calling thread,
+    * once its transaction has committed.
+    */
+   public void publish(ChangeEvent event) {
+      for (Subscription s : this._subscriptions)
+         dispatch(s, event);
+   }//end publish
+
+   private static Long key(int shard, long eventID) {
+      return ((long) shard << 48) | eventID;
+   }
+
+   private static void dispatch(Subscription s, ChangeEvent event) {
+      try{
+         s.listener.onChange(event);
+      }catch (RuntimeException e){
+         System.err.println ("Change feed subscriber failed on " + event + ": " + e.getMessage ());
+      }//end try
+   }//end dispatch
+
+   /**
+    * Registers a subscriber that gets the events committed after the feed
+    * starts.  Must be called before start.
+    */
+   public void subscribe(ChangeListener listener) {
+      subscribe(listener, null);
+   }
+
+   /**
+    * Registers a subscriber that gets the events after the given eventIDs,
+    * one per shard, e.g. to catch up from a snapshot.  Must be called before
+    * start and after all the shards were added to the router.
+    *
+    * @param listener the subscriber
+    * @param afterEventIDs the last eventID already seen per shard, or null for the head
+    */
+   public void subscribe(ChangeListener listener, long[] afterEventIDs) {
+      if (afterEventIDs != null && afterEventIDs.length != this._router.shardCount())
+         throw new IllegalArgumentException("Expected " + this._router.shardCount() + " eventIDs, got " + afterEventIDs.length);
+      this._subscriptions.add(new Subscription(listener, afterEventIDs, this._router.shardCount()));
+   }//end subscribe
+
+   /**
+    * Returns the last eventID checkpointed for this consumer on each shard,
+    * FROM_HEAD where there is none.  Pass these to subscribe to resume
+    * where an earlier run of the same consumer stopped.
+    */
+   public long[] checkpoints() throws SQLException {
+      long[] checkpoints = new long[this._router.shardCount()];
+      for (int i = 0; i < checkpoints.length; i++){
+         QueryResult rs = QueryResult.fetch(this._router.shard(i), String.format(
+            "SELECT lastEventID FROM ChangeFeedOffsets WHERE consumerName = '%s'", this._consumerName));
+         checkpoints[i] = rs.size() == 0 ? FROM_HEAD : Long.parseLong(rs.getRows().get(0).get(0));
+      }//end for
+      return checkpoints;
+   }//end checkpoints
+
+   /**
+    * Starts one feed thread per shard.  Does nothing when nobody subscribed.
+    *
+    * @throws java.lang.IllegalStateException when a subscription was made
+    *         before shards were added to the router
+    */
+   public synchronized void start() {
+      if (this._running || this._subscriptions.isEmpty())
+         return;
+      for (Subscription s : this._subscriptions)
+         if (s.delivered.length != this._router.shardCount())
+            throw new IllegalStateException("Subscribed to " + s.delivered.length + " of " + this._router.shardCount() + " shards");
+      this._running = true;
+      for (int i = 0; i < this._router.shardCount(); i++){
+         Thread t = new Thread(new ShardTail(i), "change-feed-" + i);
+         t.setDaemon(true);
+         t.start();
+         this._threads.add(t);
+      }//end for
+   }//end start
+
+   public synchronized void stop() {
+      this._running = false;
+      for (Thread t : this._threads)
+         t.interrupt();
+      this._threads.clear();
+   }//end stop
+
+   private static class Subscription {
+      final ChangeListener listener;
+      // last delivered eventID per shard, FROM_HEAD until the head is known
+      final long[] delivered;
+
+      Subscription(ChangeListener listener, long[] afterEventIDs, int shards) {
+         this.listener = listener;
+         this.delivered = new long[shards];
+         for (int i = 0; i < shards; i++)
+            this.delivered[i] = afterEventIDs == null ? FROM_HEAD : afterEventIDs[i];
+      }
+   }//end Subscription
+
+   /**
+    * Tails the outbox of one shard.
+    */
+   private class ShardTail implements Runnable {
+
+      private final int _shard;
+      private Connection _connection = null;
+      private long _position;
+      private long _gapSince = 0;
+      // eventIDs skipped over while not committed, with when they were skipped
+      private final TreeMap<Long, Long> _skipped = new TreeMap<Long, Long>();
+      private long _rescannedAt = 0;
+      private long _maintainedAt = 0;
+
+      ShardTail(int shard) {
+         this._shard = shard;
+      }
+
+      public void run() {
+         while (_running){
+            try{
+               if (this._connection == null)
+                  connect();
+               if (poll() < BATCH_SIZE){
+                  rescanSkipped();
+                  maintain();
+                  waitForChanges();
+               }//end if
+            }catch (InterruptedException e){
+               break;
+            }catch (SQLException e){
+               System.err.println ("Change feed of shard " + this._shard + ": " + e.getMessage ());
+               disconnect();
+               try{
+                  Thread.sleep(RETRY_MILLIS);
+               }catch (InterruptedException ie){
+                  break;
+               }//end try
+            }//end try
+         }//end while
+         disconnect();
+      }//end run
+
+      private void connect() throws SQLException {
+         this._connection = _router.openConnection(this._shard);
+         execute("LISTEN " + CHANNEL);
+
+         long head = Long.parseLong(QueryResult.fetch(this._connection,
+            "SELECT COALESCE(MAX(eventID), 0) FROM ChangeOutbox").getRows().get(0).get(0));
+         this._position = Long.MAX_VALUE;
+         for (Subscription s : _subscriptions){
+            if (s.delivered[this._shard] == FROM_HEAD)
+               s.delivered[this._shard] = head;
+            this._position = Math.min(this._position, s.delivered[this._shard]);
+         }//end for
+      }//end connect
+
+      /**
+       * Delivers the next batch of events and checkpoints the position.
+       *
+       * @return the number of events delivered, less than BATCH_SIZE when
+       *         the batch stopped at a gap that is still waited for
+       */
+      private int poll() throws SQLException {
+         QueryResult batch = QueryResult.fetch(this._connection, String.format(
+            "SELECT %s FROM ChangeOutbox WHERE eventID > %d ORDER BY eventID LIMIT %d", ChangeEvent.COLUMNS, this._position, BATCH_SIZE));
+         long start = this._position;
+         int delivered = 0;
+         for (List<String> record : batch.getRows()){
+            ChangeEvent event = new ChangeEvent(this._shard, record);
+            if (event.getEventID() != this._position + 1){
+               // an earlier eventID has not committed (yet)
+               long now = System.currentTimeMillis();
+               if (this._gapSince == 0)
+                  this._gapSince = now;
+               if (now - this._gapSince < GAP_WAIT_MILLIS)
+                  break;
+               skip(this._position + 1, event.getEventID() - 1);
+            }//end if
+            this._gapSince = 0;
+            deliver(event);
+            this._position = event.getEventID();
+            delivered++;
+         }//end for
+         if (this._position != start)
+            saveCheckpoint();
+         return delivered;
+      }//end poll
+
+      private void deliver(ChangeEvent event) {
+         boolean claimed = _claimed.remove(key(this._shard, event.getEventID()));
+         for (Subscription s : _subscriptions){
+            if (event.getEventID() <= s.delivered[this._shard])
+               continue;
+            if (!claimed)
+               dispatch(s, event);
+            s.delivered[this._shard] = event.getEventID();
+         }//end for
+      }//end deliver
+
+      /**
+       * Remembers the eventIDs from first to last, which did not commit
+       * within GAP_WAIT_MILLIS, to look them up again later.
+       */
+      private void skip(long first, long last) {
+         System.err.println ("Change feed of shard " + this._shard + ": skipping uncommitted events " + first
+            + (first == last ? "" : " to " + last));
+         long now = System.currentTimeMillis();
+         for (long id = Math.max(first, last - MAX_SKIPPED + 1); id <= last; id++)
+            this._skipped.put(id, now);
+         while (this._skipped.size() > MAX_SKIPPED)
+            this._skipped.remove(this._skipped.firstKey());
+      }//end skip
+
+      /**
+       * Delivers the skipped events that have committed since, every
+       * RESCAN_MILLIS, and forgets those skipped LATE_COMMIT_MILLIS ago.
+       */
+      private void rescanSkipped() throws SQLException {
+         long now = System.currentTimeMillis();
+         if (this._skipped.isEmpty() || now - this._rescannedAt < RESCAN_MILLIS)
+            return;
+         this._rescannedAt = now;
+         StringBuilder ids = new StringBuilder();
+         int count = 0;
+         for (Iterator<Map.Entry<Long, Long>> i = this._skipped.entrySet().iterator(); i.hasNext() && count < BATCH_SIZE; ){
+            Map.Entry<Long, Long> skipped = i.next();
+            if (now - skipped.getValue() > LATE_COMMIT_MILLIS){
+               System.err.println ("Change feed of shard " + this._shard + ": event " + skipped.getKey() + " never committed");
+               _claimed.remove(key(this._shard, skipped.getKey()));
+               i.remove();
+            }else{
+               ids.append(ids.length() == 0 ? "" : ", ").append(skipped.getKey());
+               count++;
+            }//end if
+         }//end for
+         if (ids.length() == 0)
+            return;
+
+         QueryResult late = QueryResult.fetch(this._connection, String.format(
+            "SELECT %s FROM ChangeOutbox WHERE eventID IN (%s) ORDER BY eventID", ChangeEvent.COLUMNS, ids));
+         for (List<String> record : late.getRows()){
+            ChangeEvent event = new ChangeEvent(this._shard, record);
+            this._skipped.remove(event.getEventID());
+            if (_claimed.remove(key(this._shard, event.getEventID())))
+               continue;
+            System.err.println ("Change feed of shard " + this._shard + ": delivering late " + event);
+            for (Subscription s : _subscriptions)
+               dispatch(s, event);
+         }//end for
+      }//end rescanSkipped
+
+      /**
+       * Every MAINTENANCE_MILLIS saves the checkpoint, so the consumer counts
+       * as alive, and deletes the outbox rows no consumer needs any more.
+       */
+      private void maintain() throws SQLException {
+         long now = System.currentTimeMillis();
+         if (now - this._maintainedAt < MAINTENANCE_MILLIS)
+            return;
+         this._maintainedAt = now;
+         saveCheckpoint();
+         execute(String.format("DELETE FROM ChangeFeedOffsets WHERE updatedOn < now() - interval '%d hours'", RETAIN_HOURS));
+         execute(String.format("DELETE FROM ChangeOutbox WHERE eventID IN (SELECT eventID FROM ChangeOutbox"
+            + " WHERE eventID <= (SELECT MIN(lastEventID) FROM ChangeFeedOffsets) AND eventID < %d"
+            + " AND createdOn < now() - interval '%d hours' ORDER BY eventID LIMIT %d)",
+            this._skipped.isEmpty() ? this._position : this._skipped.firstKey(), RETAIN_HOURS, DELETE_ROWS));
+      }//end maintain
+
+      private void saveCheckpoint() throws SQLException {
+         Statement stmt = this._connection.createStatement ();
+         try{
+            if (stmt.executeUpdate (String.format("UPDATE ChangeFeedOffsets SET lastEventID = %d, updatedOn = now() WHERE consumerName = '%s'", this._position, _consumerName)) == 0)
+               stmt.executeUpdate (String.format("INSERT INTO ChangeFeedOffsets (consumerName, lastEventID) VALUES ('%s', %d)", _consumerName, this._position));
+         }finally{
+            stmt.close ();
+         }//end try
+      }//end saveCheckpoint
+
+      /**
+       * Sleeps until a NOTIFY arrives, a gap may have filled or RESCAN_MILLIS
+       * passed.  The driver only reads notifications while it talks to the
+       * server, so every wakeup sends an empty query.
+       */
+      private void waitForChanges() throws SQLException, InterruptedException {
+         long deadline = System.currentTimeMillis() + (this._gapSince != 0 ? WAKEUP_MILLIS : RESCAN_MILLIS);
+         while (_running && System.currentTimeMillis() < deadline){
+            Thread.sleep(WAKEUP_MILLIS);
+            execute("SELECT 1");
+            Object[] notifications = ((org.postgresql.PGConnection) this._connection).getNotifications();
+            if (notifications != null && notifications.length > 0)
+               return;
+         }//end while
+      }//end waitForChanges
+
+      private void execute(String sql) throws SQLException {
+         Statement stmt = this._connection.createStatement ();
+         try{
+            stmt.execute (sql);
+         }finally{
+            stmt.close ();
+         }//end try
+      }//end execute
+
+      private void disconnect() {
+         try{
+            if (this._connection != null)
+               this._connection.close ();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+         this._connection = null;
+      }//end disconnect
+   }//end ShardTail
+}//end ChangeFeed
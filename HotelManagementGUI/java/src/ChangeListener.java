@@ -0,0 +1,28 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * An in-process subscriber of the ChangeFeed.  Every event arrives once.
+ * The events of other processes arrive on their shard's feed thread in
+ * eventID order, except one that committed long after later ones, which
+ * arrives late.  The events of this process arrive on the committing
+ * thread as soon as they commit, possibly ahead of earlier events of
+ * other processes.  Events may therefore arrive concurrently and out of
+ * order; a subscriber that keeps the latest value of something checks
+ * ChangeEvent.isAfter before overwriting it.
+ *
+ */
+public interface ChangeListener {
+
+   void onChange(ChangeEvent event);
+}//end ChangeListener
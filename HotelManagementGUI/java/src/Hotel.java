@@ -23,7 +23,12 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.TreeSet;
 import java.lang.Math;
+import java.lang.management.ManagementFactory;
 import java.text.SimpleDateFormat;
 import java.text.DateFormat;
 import java.sql.Timestamp;
@@ -38,6 +43,24 @@ public class Hotel {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // routes hotel owned rows to the shard databases, _connection is shard 0.
+   private ShardRouter _shards = null;
+
+   // delivers the committed bookings, room updates and repairs in-process.
+   private ChangeFeed _changes = null;
+
+   // memory-mapped snapshot of hotels, rooms and recent bookings, or null.
+   private Catalog _catalog = null;
+
+   // most recent bookings of the customers seen so far.
+   private RecentBookings _recentBookings = null;
+
+   // bookings and repair windows of every room of the hotels seen so far.
+   private RoomSchedule _schedule = null;
+
+   // results of the manager reports, invalidated by per hotel versions.
+   private ReportCache _reports = null;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -57,11 +80,17 @@ public class Hotel {
       System.out.print("Connecting to database...");
       try{
          // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+         String url = ShardRouter.url(dbname, dbport);
          System.out.println ("Connection URL: " + url + "\n");
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
+         this._shards = new ShardRouter(this._connection, url, user, passwd);
+         String consumer = System.getProperty("changefeed.consumer", "hotel-" + ManagementFactory.getRuntimeMXBean().getName());
+         this._changes = new ChangeFeed(this._shards, consumer.substring(0, Math.min(30, consumer.length())));
+         this._recentBookings = new RecentBookings(this._shards);
+         this._schedule = new RoomSchedule(this._shards);
+         this._reports = new ReportCache();
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -217,6 +246,13 @@ public class Hotel {
       return -1;
    }
 
+   /**
+    * Copies a user created on the primary database to the other shards.
+    */
+   public void replicateUser(int userID, String name, String password, String type) throws SQLException {
+      this._shards.broadcastUpdate(String.format("INSERT INTO USERS (userID, name, password, userType) VALUES (%d, '%s','%s', '%s')", userID, name, password, type));
+   }//end replicateUser
+
    public int getNewUserID(String sql) throws SQLException {
       Statement stmt = this._connection.createStatement ();
       ResultSet rs = stmt.executeQuery (sql);
@@ -224,11 +260,230 @@ public class Hotel {
          return rs.getInt(1);
       return -1;
    }
+   /**
+    * Connects to the additional shard databases listed in a configuration
+    * file, see ShardRouter.addShards.
+    *
+    * @param configFile the shard configuration file
+    * @param passwd the user login password
+    */
+   public void addShards(String configFile, String passwd) throws Exception {
+      this._shards.addShards(configFile, passwd);
+   }//end addShards
+
+   /**
+    * Method to execute the update SQL statements of one change in a single
+    * transaction on the shard that owns the given hotel.  The statements
+    * must end with the change's ChangeFeed.outboxInsert; the change is
+    * published to the in-process subscribers as soon as the transaction
+    * commits and the change feed of other processes is notified.
+    *
+    * @param hotelID the hotel the updated rows belong to
+    * @param sqls the input SQL strings
+    * @throws java.sql.SQLException when update failed, nothing was changed
+    */
+   public void executeChange (int hotelID, String... sqls) throws SQLException {
+      int shard = this._shards.shardOf(hotelID);
+      Connection connection = this._shards.shard(shard);
+      ChangeEvent event;
+      connection.setAutoCommit(false);
+      try{
+         Statement stmt = connection.createStatement ();
+         for (String sql : sqls)
+            stmt.executeUpdate (sql);
+         event = this._changes.claim(connection, shard);
+         stmt.execute (ChangeFeed.NOTIFY);
+         stmt.close ();
+         connection.commit();
+      }catch (SQLException e){
+         connection.rollback();
+         throw e;
+      }finally{
+         connection.setAutoCommit(true);
+      }//end try
+      this._changes.publish(event);
+   }//end executeChange
+
+   /**
+    * Registers an in-process subscriber of the change feed, see
+    * ChangeFeed.subscribe.  Must be called before startChangeFeed.
+    */
+   public void subscribe(ChangeListener listener, long[] afterEventIDs) {
+      this._changes.subscribe(listener, afterEventIDs);
+   }
+
+   /**
+    * Serves hotels and room availability from the catalog snapshot file,
+    * replaying the changes newer than the snapshot from the change feed.
+    * Must be called before startChangeFeed.  Without a usable snapshot the
+    * queries keep going to the database.
+    *
+    * @param path the catalog snapshot file
+    */
+   public void openCatalog(String path) {
+      try{
+         this._catalog = Catalog.open(this._shards, new File(path));
+         subscribe(this._catalog, this._catalog.replayAfter());
+      }catch (Exception e){
+         System.err.println ("Catalog snapshot unavailable: " + e.getMessage ());
+      }//end try
+   }//end openCatalog
+
+   public Catalog getCatalog() {
+      return this._catalog;
+   }
+
+   public RecentBookings getRecentBookings() {
+      return this._recentBookings;
+   }
+
+   public RoomSchedule getSchedule() {
+      return this._schedule;
+   }
+
+   /**
+    * Subscribes the recent bookings, room schedule and report cache to the
+    * change feed.  Must be called after addShards, a subscription covers
+    * the shards known when it is made, and before startChangeFeed.
+    */
+   public void subscribeCaches() {
+      this._changes.subscribe(this._recentBookings);
+      this._changes.subscribe(this._schedule);
+      this._changes.subscribe(this._reports);
+   }//end subscribeCaches
+
+   public void startChangeFeed() {
+      this._changes.start();
+   }
+
+   /**
+    * Method to execute a query on the shard that owns the given hotel and
+    * output the results to standard out.
+    *
+    * @param hotelID the hotel the queried rows belong to
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (int hotelID, String query) throws SQLException {
+      return QueryResult.fetch(this._shards.connectionFor(hotelID), query).print();
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute a query on the shard that owns the given hotel and
+    * return the number of results.
+    *
+    * @param hotelID the hotel the queried rows belong to
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (int hotelID, String query) throws SQLException {
+      return QueryResult.fetch(this._shards.connectionFor(hotelID), query).size();
+   }//end executeQuery
+
+   /**
+    * Method to execute a query that spans hotels.  The query runs on every
+    * shard in parallel and the partial results are merged, ordered and cut
+    * to the limit.
+    *
+    * @param query the input query string
+    * @param order the order of the merged rows, or null
+    * @param limit the maximum number of rows, or 0 for all rows
+    * @return the merged query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryResult executeQueryOnAllShards (String query, Comparator<List<String>> order, int limit) throws SQLException {
+      return this._shards.scatter(query, order, limit);
+   }//end executeQueryOnAllShards
+
+   /**
+    * Exports the bookings, room updates and repairs of hotels to
+    * compressed files, see BulkExport.export.
+    */
+   public List<String> exportHotels(List<Integer> hotelIDs, String startDate, String endDate, String format, String dir) throws Exception {
+      return BulkExport.export(this._shards, hotelIDs, startDate, endDate, format, new File(dir));
+   }//end exportHotels
+
+   /**
+    * Method to execute a report query that spans hotels, or return its
+    * cached result while none of the hotels it depends on has changed.
+    * The hotels are part of the cache key, so a result computed for
+    * another set of hotels is not served.
+    *
+    * @param report the report name
+    * @param hotels the hotels the result depends on, or null for all hotels
+    * @param query the input query string
+    * @param order the order of the merged rows, or null
+    * @param limit the maximum number of rows, or 0 for all rows
+    * @return the query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryResult executeCachedQuery (String report, Collection<Integer> hotels, String query, Comparator<List<String>> order, int limit) throws SQLException {
+      String key = report + "|" + (hotels == null ? "*" : new TreeSet<Integer>(hotels)) + "|" + query;
+      QueryResult result = this._reports.get(key);
+      if (result == null){
+         ReportCache.Versions versions = this._reports.versions(hotels);
+         result = this._shards.scatter(query, order, limit);
+         this._reports.put(key, versions, result);
+      }//end if
+      return result;
+   }//end executeCachedQuery
+
+   /**
+    * Method to execute a report query on one hotel, or return its cached
+    * result while the hotel has not changed.
+    *
+    * @param report the report name
+    * @param hotelID the hotel the report is about
+    * @param query the input query string
+    * @return the query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryResult executeCachedQuery (String report, int hotelID, String query) throws SQLException {
+      String key = report + "|" + query;
+      QueryResult result = this._reports.get(key);
+      if (result == null){
+         ReportCache.Versions versions = this._reports.versions(Collections.singletonList(hotelID));
+         result = QueryResult.fetch(this._shards.connectionFor(hotelID), query);
+         this._reports.put(key, versions, result);
+      }//end if
+      return result;
+   }//end executeCachedQuery
+
+   /**
+    * Returns the hotels managed by a manager.  Hotel rows are only changed
+    * outside the application, where no change event tells about it, so the
+    * list is cached until the report cache TTL runs out.
+    */
+   public List<Integer> managedHotels (String managerID) throws SQLException {
+      String query = String.format("SELECT Hotel.hotelID FROM Hotel WHERE Hotel.managerUserID = %s", managerID);
+      QueryResult result = this._reports.getLookup(query);
+      if (result == null){
+         result = this._shards.scatter(query, null, 0);
+         this._reports.putLookup(query, result);
+      }//end if
+      List<Integer> hotels = new ArrayList<Integer>();
+      for (List<String> record : result.getRows())
+         hotels.add(Integer.valueOf(record.get(0)));
+      return hotels;
+   }//end managedHotels
+
+   public ReportCache getReportCache() {
+      return this._reports;
+   }
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
       try{
+         if (this._changes != null){
+            this._changes.stop ();
+         }//end if
+         if (this._shards != null){
+            this._shards.close ();
+         }//end if
          if (this._connection != null){
             this._connection.close ();
          }//end if
@@ -243,12 +498,12 @@ public class Hotel {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length != 3 && args.length != 4) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Hotel.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [<shard config>]");
          return;
       }//end if
 
@@ -263,6 +518,11 @@ public class Hotel {
          String dbport = args[1];
          String user = args[2];
          esql = new Hotel (dbname, dbport, user, "");
+         if (args.length == 4)
+            esql.addShards(args[3], "");
+         esql.subscribeCaches();
+         esql.openCatalog(System.getProperty("catalog.snapshot", "catalog.snap"));
+         esql.startChangeFeed();
 
          boolean keepon = true;
          while(keepon) {
@@ -296,6 +556,9 @@ public class Hotel {
                 System.out.println("8. View 5 regular Customers");
                 System.out.println("9. Place room repair Request to a company");
                 System.out.println("10. View room repair Requests history");
+                System.out.println("11. View bookings during room repairs");
+                System.out.println("12. Export booking, update and repair history");
+                System.out.println("13. View report cache statistics");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
@@ -310,6 +573,9 @@ public class Hotel {
                    case 8: viewRegularCustomers(esql, authorisedUser); break;
                    case 9: placeRoomRepairRequests(esql, authorisedUser); break;
                    case 10: viewRoomRepairHistory(esql, authorisedUser); break;
+                   case 11: viewRepairConflicts(esql, authorisedUser); break;
+                   case 12: exportHotelHistory(esql, authorisedUser); break;
+                   case 13: viewReportCacheStats(esql, authorisedUser); break;
                    case 20: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
@@ -371,7 +637,10 @@ public class Hotel {
          String type="Customer";
 			String query = String.format("INSERT INTO USERS (name, password, userType) VALUES ('%s','%s', '%s')", name, password, type);
          esql.executeUpdate(query);
-         System.out.println ("User successfully created with userID = " + esql.getNewUserID("SELECT last_value FROM users_userID_seq"));
+         int userID = esql.getNewUserID("SELECT last_value FROM users_userID_seq");
+         //every shard keeps a copy of Users for its foreign keys and joins
+         esql.replicateUser(userID, name, password, type);
+         System.out.println ("User successfully created with userID = " + userID);
          
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -416,7 +685,10 @@ public class Hotel {
         String query = String.format("SELECT hotelName FROM Hotel WHERE calculate_distance(%s, %s, Hotel.latitude, Hotel.longitude) < 30.0", userLat, userLong);
 
 
-        esql.executeQueryAndPrintResult(query);
+        if (esql.getCatalog() != null)
+           esql.getCatalog().hotelsWithin(Double.parseDouble(userLat), Double.parseDouble(userLong), 30.0).print();
+        else
+           esql.executeQueryOnAllShards(query, null, 0).print();
         }
         catch(Exception e){
                 System.err.println(e.getMessage ());
@@ -444,7 +716,11 @@ public class Hotel {
       
       String query = String.format("SELECT Rooms.roomNumber, Rooms.price FROM Rooms WHERE Rooms.hotelID = %s AND Rooms.roomNumber NOT IN (SELECT RoomBookings.roomNumber FROM RoomBookings WHERE RoomBookings.hotelID = %s AND RoomBookings.bookingDate = '%s')", hotelID, hotelID, datePostgres);
       
-      esql.executeQueryAndPrintResult(query);
+      QueryResult rooms = esql.getCatalog() == null ? null : esql.getCatalog().availableRooms(Integer.parseInt(hotelID.trim()), datePostgres);
+      if (rooms != null)
+         rooms.print();
+      else
+         esql.executeQueryAndPrintResult(Integer.parseInt(hotelID.trim()), query);
       
    }
    catch(Exception e){
@@ -475,10 +751,15 @@ public class Hotel {
       
       String query = String.format("SELECT Rooms.roomNumber, Rooms.price FROM Rooms WHERE Rooms.hotelID = %s AND Rooms.roomNumber = %s AND Rooms.roomNumber NOT IN (SELECT RoomBookings.roomNumber FROM RoomBookings WHERE RoomBookings.hotelID = %s AND RoomBookings.bookingDate = '%s')", hotelID, roomNum, hotelID, dateTmp);
       
-      if(esql.executeQueryAndPrintResult(query)>0){
+      int hID = Integer.parseInt(hotelID.trim());
+      if(esql.getSchedule().isUnderRepair(hID, Integer.parseInt(roomNum.trim()), CatalogSnapshot.epochDay(dateTmp))){
+         System.out.println("\tWe're sorry - the selected room is under repair on the given date.");
+      }
+      else if(esql.executeQueryAndPrintResult(hID, query)>0){
          System.out.println("\tRoom is available for booking! Room is now booked.");
          query = String.format("INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate) VALUES (%s, %s, %s, '%s')", authUser, hotelID, roomNum, dateTmp);
-         esql.executeUpdate(query);
+         String price = String.format("(SELECT price FROM Rooms WHERE hotelID = %s AND roomNumber = %s)", hotelID, roomNum);
+         esql.executeChange(hID, query, ChangeFeed.outboxInsert(ChangeEvent.BOOKING, hotelID, roomNum, authUser, dateTmp, null, price, "roombookings_bookingid_seq"));
       }
       else{
          System.out.println("\tWe're sorry - the selected room is currently unavailable for the given date.");
@@ -497,10 +778,8 @@ try{
 String uID = aUser;
 
 //Select: hotelID, roomNumber, billing information, date of booking.
-String query = String.format("SELECT RoomBookings.hotelID, RoomBookings.roomNumber, Rooms.price, RoomBookings.bookingDate FROM Rooms,RoomBookings WHERE RoomBookings.customerID = %s AND RoomBookings.roomNumber = Rooms.roomNumber AND RoomBookings.hotelID = Rooms.hotelID ORDER BY RoomBookings.bookingDate DESC LIMIT 5", aUser);
-
-
-esql.executeQueryAndPrintResult(query);
+//Served from memory, the customer's bookings are only queried on first use.
+esql.getRecentBookings().get(Integer.parseInt(uID.trim())).print();
 
 }
 catch(Exception e){
@@ -540,7 +819,8 @@ String roomNum = in.readLine();
 //Query to check if room exists at hotel
 query = String.format("SELECT Rooms.price, Rooms.imageURL FROM Rooms, Hotel WHERE Rooms.hotelID = %s AND Rooms.roomNumber = %s AND Hotel.managerUserID = %s AND Hotel.hotelID = Rooms.hotelID", hotelID, roomNum, authUser);
 
-     if(esql.executeQueryAndPrintResult(query)>0){
+     int hID = Integer.parseInt(hotelID.trim());
+     if(esql.executeQueryAndPrintResult(hID, query)>0){
          Timestamp timestamp = new Timestamp(System.currentTimeMillis());
 
          System.out.println("\tRoom exists.");
@@ -553,11 +833,9 @@ query = String.format("SELECT Rooms.price, Rooms.imageURL FROM Rooms, Hotel WHER
 
          query = String.format("UPDATE Rooms SET price = %s, imageURL = '%s' WHERE Rooms.hotelID = %s AND Rooms.roomNumber = %s", newPrice, newURL, hotelID, roomNum);
 
-         esql.executeUpdate(query);
-
-         query = String.format("INSERT INTO RoomUpdatesLog (managerID, hotelID, roomNumber, updatedOn) VALUES (%s, %s, %s, '%s')", authUser, hotelID, roomNum, timestamp);
+         String logQuery = String.format("INSERT INTO RoomUpdatesLog (managerID, hotelID, roomNumber, updatedOn) VALUES (%s, %s, %s, '%s')", authUser, hotelID, roomNum, timestamp);
 
-         esql.executeUpdate(query);
+         esql.executeChange(hID, query, logQuery, ChangeFeed.outboxInsert(ChangeEvent.ROOM_UPDATE, hotelID, roomNum, authUser, null, null, newPrice, "roomupdateslog_updatenumber_seq"));
 
          System.out.println("\tRoom successfully updated.");
 
@@ -593,9 +871,10 @@ String query = String.format("SELECT * FROM Users WHERE Users.userID = %s AND Us
 if (esql.executeQuery(query)>0){
 
 //Show last 5 on updatesLog
-query = String.format("SELECT * FROM RoomUpdatesLog ORDER BY updateNumber DESC LIMIT 5");
+query = String.format("SELECT * FROM RoomUpdatesLog ORDER BY updatedOn DESC LIMIT 5");
 
-esql.executeQueryAndPrintResult(query);
+//updateNumbers are per shard, so merge the shards on updatedOn.
+esql.executeCachedQuery("recentUpdates", null, query, QueryResult.orderBy(4, true), 5).print();
 }
 else{
    System.out.println("\tYou are not a manager.");
@@ -630,7 +909,7 @@ if (esql.executeQuery(query)>0){
 
 query = String.format("SELECT RoomBookings.bookingID, Users.name, RoomBookings.hotelID, RoomBookings.roomNumber, RoomBookings.bookingDate FROM Users,RoomBookings,Hotel WHERE RoomBookings.customerID = Users.userID AND RoomBookings.hotelID = Hotel.hotelID AND RoomBookings.customerID = Users.userID AND Hotel.managerUserID = %s", aUser);
 
-esql.executeQueryAndPrintResult(query);
+esql.executeCachedQuery("bookingHistory", esql.managedHotels(aUser), query, null, 0).print();
 
 
 System.out.print("\tEnter start date: ");
@@ -653,7 +932,7 @@ String dateTmp2 = dFormat.format(date2);
 
 query = String.format("SELECT RoomBookings.bookingID, Users.name, RoomBookings.hotelID, RoomBookings.roomNumber, RoomBookings.bookingDate FROM Users,RoomBookings WHERE RoomBookings.customerID = Users.userID AND RoomBookings.bookingDate >= '%s' AND RoomBookings.bookingDate <= '%s' ORDER BY RoomBookings.bookingDate DESC", dateTmp, dateTmp2);
 
-esql.executeQueryAndPrintResult(query);
+esql.executeCachedQuery("bookingHistoryRange", null, query, QueryResult.orderBy(4, true), 0).print();
 
 }else{
 
@@ -690,11 +969,11 @@ String hID = in.readLine();
 query = String.format("SELECT Hotel.hotelID FROM Hotel WHERE Hotel.hotelID = %s AND Hotel.managerUserID = %s",hID, aUser);
 
 //Check to see if it's managers hotel
-if (esql.executeQuery(query)>0){
+if (esql.executeQuery(Integer.parseInt(hID.trim()), query)>0){
 
 query = String.format("SELECT Users.name, COUNT(customerID) AS Total FROM Users,RoomBookings WHERE RoomBookings.hotelID = %s AND Users.userID = RoomBookings.customerID GROUP BY Users.name ORDER BY Total DESC LIMIT 5", hID);
 
-esql.executeQueryAndPrintResult(query);
+esql.executeCachedQuery("regularCustomers", Integer.parseInt(hID.trim()), query).print();
 }
 else{
    System.out.println("You do not manage this hotel.");
@@ -732,7 +1011,7 @@ String hID = in.readLine();
 query = String.format("SELECT Hotel.hotelID FROM Hotel WHERE Hotel.hotelID = %s AND Hotel.managerUserID = %s",hID, aUser);
 
 //Check to see if it's managers hotel
-if (esql.executeQuery(query)>0){
+if (esql.executeQuery(Integer.parseInt(hID.trim()), query)>0){
 
 
 
@@ -748,21 +1027,43 @@ String cID = in.readLine();
 System.out.print("\tEnter date of repair: ");
 String strDate = in.readLine();
 
+System.out.print("\tEnter last date of repair (empty for one day): ");
+String strEndDate = in.readLine();
+
   
 SimpleDateFormat format = new SimpleDateFormat("MM/dd/yyyy");
 java.util.Date date = format.parse(strDate);
 
 DateFormat dFormat = new SimpleDateFormat("yyyy-MM-dd");
 String dateTmp = dFormat.format(date);
+String endDateTmp = strEndDate.trim().length() == 0 ? dateTmp : dFormat.format(format.parse(strEndDate));
+
+if (endDateTmp.compareTo(dateTmp) < 0){
+   System.out.println("\tThe last date of repair is before the date of repair.");
+   return;
+}
+
+//Flag the bookings the repair would collide with.
+QueryResult booked = esql.getSchedule().bookingsDuring(Integer.parseInt(hID.trim()), Integer.parseInt(roomNum.trim()), CatalogSnapshot.epochDay(dateTmp), CatalogSnapshot.epochDay(endDateTmp));
+if (booked.size() > 0){
+   System.out.println("\tThe room is booked during the repair:");
+   booked.print();
+   System.out.print("\tPlace the repair request anyway? (y/n): ");
+   if (!in.readLine().trim().equalsIgnoreCase("y"))
+      return;
+}
 
 
-query = String.format("INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) VALUES (%s, %s, %s, '%s')", cID, hID, roomNum, dateTmp);
+//A one day repair has no repairEndDate.
+if (endDateTmp.equals(dateTmp))
+   endDateTmp = null;
 
-esql.executeUpdate(query);
+query = String.format("INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate, repairEndDate) VALUES (%s, %s, %s, '%s', %s)", cID, hID, roomNum, dateTmp, endDateTmp == null ? "NULL" : "'" + endDateTmp + "'");
 
-query = String.format("INSERT INTO RoomRepairRequests (managerID, repairID) VALUES (%s, currval('roomrepairs_repairid_seq'))", aUser);
+String requestQuery = String.format("INSERT INTO RoomRepairRequests (managerID, repairID) VALUES (%s, currval('roomrepairs_repairid_seq'))", aUser);
 
-esql.executeUpdate(query);
+//all inserts go to the hotel's shard so currval sees the new repairID
+esql.executeChange(Integer.parseInt(hID.trim()), query, requestQuery, ChangeFeed.outboxInsert(ChangeEvent.REPAIR, hID, roomNum, aUser, dateTmp, endDateTmp, null, "roomrepairs_repairid_seq"));
 }
 else{
    System.out.println("This is not your hotel.");
@@ -790,9 +1091,9 @@ String query = String.format("SELECT * FROM Users WHERE Users.userID = %s AND Us
 
 if (esql.executeQuery(query)>0){
 
-query = String.format("SELECT RoomRepairs.companyID, RoomRepairs.hotelID, RoomRepairs.roomNumber, RoomRepairs.repairDate FROM RoomRepairs,RoomRepairRequests WHERE RoomRepairRequests.managerID = %s AND RoomRepairRequests.repairID = RoomRepairs.repairID", aUser);
+query = String.format("SELECT RoomRepairs.companyID, RoomRepairs.hotelID, RoomRepairs.roomNumber, RoomRepairs.repairDate, RoomRepairs.repairEndDate FROM RoomRepairs,RoomRepairRequests WHERE RoomRepairRequests.managerID = %s AND RoomRepairRequests.repairID = RoomRepairs.repairID", aUser);
 
-esql.executeQueryAndPrintResult(query);
+esql.executeCachedQuery("repairHistory", esql.managedHotels(aUser), query, null, 0).print();
 
 }
 else{
@@ -804,6 +1105,132 @@ else{
 catch(Exception e){
 System.err.println (e.getMessage ());
 
+}
+}
+
+
+public static void viewRepairConflicts(Hotel esql, String authUser) {
+
+   try{
+
+//Must check to make sure the user is a manager. userType == manager
+String query = String.format("SELECT * FROM Users WHERE Users.userID = %s AND Users.userType = 'manager'", authUser);
+
+if (esql.executeQuery(query)>0){
+
+System.out.print("\tEnter hotelID: ");
+String hID = in.readLine();
+
+query = String.format("SELECT Hotel.hotelID FROM Hotel WHERE Hotel.hotelID = %s AND Hotel.managerUserID = %s",hID, authUser);
+
+//Check to see if it's managers hotel
+if (esql.executeQuery(Integer.parseInt(hID.trim()), query)>0){
+
+System.out.print("\tEnter start date: ");
+String strDate = in.readLine();
+
+System.out.print("\tEnter end date: ");
+String endDate = in.readLine();
+
+SimpleDateFormat format = new SimpleDateFormat("MM/dd/yyyy");
+DateFormat dFormat = new SimpleDateFormat("yyyy-MM-dd");
+String dateTmp = dFormat.format(format.parse(strDate));
+String dateTmp2 = dFormat.format(format.parse(endDate));
+
+if (esql.getSchedule().conflicts(Integer.parseInt(hID.trim()), CatalogSnapshot.epochDay(dateTmp), CatalogSnapshot.epochDay(dateTmp2)).print() == 0)
+   System.out.println("\tNo room is booked during a repair.");
+}
+else{
+   System.out.println("This is not your hotel.");
+}
+
+}
+else{
+   System.out.println("You are not a manager.");
+}
+   }
+catch(Exception e){
+System.err.println (e.getMessage ());
+
+}
+}
+
+
+public static void exportHotelHistory(Hotel esql, String authUser) {
+
+   try{
+
+//Must check to make sure the user is a manager. userType == manager
+String query = String.format("SELECT * FROM Users WHERE Users.userID = %s AND Users.userType = 'manager'", authUser);
+
+if (esql.executeQuery(query)>0){
+
+System.out.print("\tEnter hotelIDs separated by commas (empty for all your hotels): ");
+String hIDs = in.readLine();
+
+//Only the manager's own hotels are exported.
+query = String.format("SELECT Hotel.hotelID FROM Hotel WHERE Hotel.managerUserID = %s", authUser);
+List<Integer> hotels = new ArrayList<Integer>();
+for (List<String> record : esql.executeQueryOnAllShards(query, null, 0).getRows()){
+   Integer hotelID = Integer.valueOf(record.get(0));
+   if (hIDs.trim().length() == 0 || ("," + hIDs.replace(" ", "") + ",").contains("," + hotelID + ","))
+      hotels.add(hotelID);
+}
+
+if (hotels.isEmpty()){
+   System.out.println("You do not manage these hotels.");
+   return;
+}
+
+System.out.print("\tEnter start date: ");
+String strDate = in.readLine();
+
+System.out.print("\tEnter end date: ");
+String endDate = in.readLine();
+
+System.out.print("\tEnter format (csv or col): ");
+String exportFormat = in.readLine().trim();
+
+System.out.print("\tEnter output directory: ");
+String dir = in.readLine().trim();
+
+SimpleDateFormat format = new SimpleDateFormat("MM/dd/yyyy");
+DateFormat dFormat = new SimpleDateFormat("yyyy-MM-dd");
+String dateTmp = dFormat.format(format.parse(strDate));
+String dateTmp2 = dFormat.format(format.parse(endDate));
+
+System.out.println("file\trows");
+for (String written : esql.exportHotels(hotels, dateTmp, dateTmp2, exportFormat, dir))
+   System.out.println(written);
+}
+else{
+   System.out.println("You are not a manager.");
+}
+   }
+catch(Exception e){
+System.err.println (e.getMessage ());
+
+}
+}
+
+
+public static void viewReportCacheStats(Hotel esql, String authUser) {
+
+   try{
+
+//Must check to make sure the user is a manager. userType == manager
+String query = String.format("SELECT * FROM Users WHERE Users.userID = %s AND Users.userType = 'manager'", authUser);
+
+if (esql.executeQuery(query)>0){
+esql.getReportCache().stats().print();
+}
+else{
+   System.out.println("You are not a manager.");
+}
+   }
+catch(Exception e){
+System.err.println (e.getMessage ());
+
 }
 }
 }//end Hotel
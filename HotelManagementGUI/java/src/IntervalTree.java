@@ -0,0 +1,150 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * This class is an interval tree of closed day ranges [start, end], each
+ * tagged with the id of the row it came from.  It is an AVL tree ordered
+ * by start where every node also keeps the largest end below it, so an
+ * overlap test takes O(log n) and listing the k overlaps O(log n + k).
+ *
+ * Not thread safe, RoomSchedule locks around it.
+ *
+ */
+public class IntervalTree {
+
+   private static class Node {
+      final int start, end, id;
+      int max, height = 1;
+      Node left, right;
+
+      Node(int start, int end, int id) {
+         this.start = start;
+         this.end = end;
+         this.id = id;
+         this.max = end;
+      }
+   }//end Node
+
+   private Node _root = null;
+   private int _size = 0;
+
+   public int size() {
+      return this._size;
+   }
+
+   /**
+    * Adds an interval.  Adding an id that is already there with the same
+    * start does nothing.
+    */
+   public void insert(int start, int end, int id) {
+      this._root = insert(this._root, new Node(start, end, id));
+   }//end insert
+
+   /**
+    * Returns true when some interval overlaps [start, end].
+    */
+   public boolean overlaps(int start, int end) {
+      Node n = this._root;
+      while (n != null){
+         if (n.start <= end && start <= n.end)
+            return true;
+         // the left subtree can only overlap if something in it ends late enough
+         n = (n.left != null && n.left.max >= start) ? n.left : n.right;
+      }//end while
+      return false;
+   }//end overlaps
+
+   /**
+    * Returns the {start, end, id} of every interval overlapping [start, end],
+    * ordered by start.
+    */
+   public List<int[]> overlapping(int start, int end) {
+      List<int[]> result = new ArrayList<int[]>();
+      collect(this._root, start, end, result);
+      return result;
+   }//end overlapping
+
+   private static void collect(Node n, int start, int end, List<int[]> result) {
+      if (n == null || n.max < start)
+         return;
+      collect(n.left, start, end, result);
+      if (n.start > end)
+         return;
+      if (start <= n.end)
+         result.add(new int[] { n.start, n.end, n.id });
+      collect(n.right, start, end, result);
+   }//end collect
+
+   private Node insert(Node n, Node added) {
+      if (n == null){
+         this._size++;
+         return added;
+      }//end if
+      int c = added.start != n.start ? (added.start < n.start ? -1 : 1) : (added.id < n.id ? -1 : (added.id == n.id ? 0 : 1));
+      if (c == 0)
+         return n;
+      if (c < 0)
+         n.left = insert(n.left, added);
+      else
+         n.right = insert(n.right, added);
+      return balance(n);
+   }//end insert
+
+   private static int height(Node n) {
+      return n == null ? 0 : n.height;
+   }
+
+   private static void update(Node n) {
+      n.height = 1 + Math.max(height(n.left), height(n.right));
+      n.max = n.end;
+      if (n.left != null) n.max = Math.max(n.max, n.left.max);
+      if (n.right != null) n.max = Math.max(n.max, n.right.max);
+   }//end update
+
+   private static Node rotateRight(Node n) {
+      Node l = n.left;
+      n.left = l.right;
+      l.right = n;
+      update(n);
+      update(l);
+      return l;
+   }//end rotateRight
+
+   private static Node rotateLeft(Node n) {
+      Node r = n.right;
+      n.right = r.left;
+      r.left = n;
+      update(n);
+      update(r);
+      return r;
+   }//end rotateLeft
+
+   private static Node balance(Node n) {
+      update(n);
+      int b = height(n.left) - height(n.right);
+      if (b > 1){
+         if (height(n.left.left) < height(n.left.right))
+            n.left = rotateLeft(n.left);
+         return rotateRight(n);
+      }//end if
+      if (b < -1){
+         if (height(n.right.right) < height(n.right.left))
+            n.right = rotateRight(n.right);
+         return rotateLeft(n);
+      }//end if
+      return n;
+   }//end balance
+}//end IntervalTree
@@ -0,0 +1,156 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * This class holds the column names and rows of a query result so that
+ * results fetched from several databases can be merged before they are
+ * printed.
+ *
+ */
+public class QueryResult {
+
+   // column names as reported by the result set metadata
+   private final List<String> _columns;
+
+   // every record is a list of attribute values
+   private final List<List<String>> _rows;
+
+   public QueryResult(List<String> columns, List<List<String>> rows) {
+      this._columns = columns;
+      this._rows = rows;
+   }//end QueryResult
+
+   public List<String> getColumns() {
+      return this._columns;
+   }
+
+   public List<List<String>> getRows() {
+      return this._rows;
+   }
+
+   public int size() {
+      return this._rows.size();
+   }
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) on the
+    * given connection and keep both the column names and the records.
+    *
+    * @param connection the physical connection to run the query on
+    * @param query the input query string
+    * @return the query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static QueryResult fetch(Connection connection, String query) throws SQLException {
+      Statement stmt = connection.createStatement ();
+      try{
+         ResultSet rs = stmt.executeQuery (query);
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         List<String> columns = new ArrayList<String>();
+         for (int i=1; i<=numCol; ++i)
+            columns.add(rsmd.getColumnName(i));
+
+         List<List<String>> rows = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            rows.add(record);
+         }//end while
+         return new QueryResult(columns, rows);
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end fetch
+
+   /**
+    * Merges the partial results of the same query.  When an order is given
+    * the merged rows are sorted by it, and when limit is positive only the
+    * first limit rows are kept (top-K).
+    *
+    * @param parts the partial results, all with the same columns
+    * @param order the row order, or null to keep the parts' order
+    * @param limit the maximum number of rows, or 0 for all rows
+    * @return the merged result
+    */
+   public static QueryResult merge(List<QueryResult> parts, Comparator<List<String>> order, int limit) {
+      List<String> columns = new ArrayList<String>();
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (QueryResult part : parts){
+         if (columns.isEmpty())
+            columns = part.getColumns();
+         rows.addAll(part.getRows());
+      }//end for
+      if (order != null)
+         Collections.sort(rows, order);
+      if (limit > 0 && rows.size() > limit)
+         rows = new ArrayList<List<String>>(rows.subList(0, limit));
+      return new QueryResult(columns, rows);
+   }//end merge
+
+   /**
+    * Returns a row order on the given (0 based) column.  Values are compared
+    * as numbers when both parse as numbers and as strings otherwise, which
+    * also orders the 'yyyy-MM-dd' dates and timestamps Postgres returns.
+    */
+   public static Comparator<List<String>> orderBy(final int column, final boolean descending) {
+      return new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            int c = compareValues(a.get(column), b.get(column));
+            return descending ? -c : c;
+         }
+      };
+   }//end orderBy
+
+   private static int compareValues(String a, String b) {
+      if (a == null || b == null)
+         return a == null ? (b == null ? 0 : -1) : 1;
+      try{
+         return Double.compare(Double.parseDouble(a.trim()), Double.parseDouble(b.trim()));
+      }catch (NumberFormatException e){
+         return a.compareTo(b);
+      }//end try
+   }//end compareValues
+
+   /**
+    * Outputs the result to standard out in the same layout as
+    * Hotel.executeQueryAndPrintResult.
+    *
+    * @return the number of rows printed
+    */
+   public int print() {
+      if (!this._rows.isEmpty()){
+         for (String column : this._columns)
+            System.out.print(column + "\t");
+         System.out.println();
+      }//end if
+      for (List<String> record : this._rows){
+         for (String value : record)
+            System.out.print (value + "\t");
+         System.out.println ();
+      }//end for
+      return this._rows.size();
+   }//end print
+}//end QueryResult
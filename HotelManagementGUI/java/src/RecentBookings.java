@@ -0,0 +1,248 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps the most recent bookings of each customer, with the
+ * room price copied in, so viewRecentBookingsfromCustomer does not query
+ * the database once a customer's bookings are known.
+ *
+ * A customer is loaded from the database on first use (the query is
+ * covered by roomBookings_customer_recent_index) and is kept current from
+ * the changes of this process as they commit and from the change feed for
+ * the others: new bookings go into the customer's buffer and room price
+ * updates are copied into the buffers holding that room.
+ *
+ */
+public class RecentBookings implements ChangeListener {
+
+   // bookings kept per customer, as many as the screen shows
+   public static final int LIMIT = 5;
+
+   // customers kept, the least recently viewed are dropped first
+   private static final int MAX_CUSTOMERS = 100000;
+
+   // the shard of a price read from the database, any change replaces it
+   private static final int LOADED = -1;
+
+   private final ShardRouter _router;
+
+   private final Map<Integer, Buffer> _customers = Collections.synchronizedMap(new LinkedHashMap<Integer, Buffer>(1024, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Integer, Buffer> eldest) {
+         if (size() <= MAX_CUSTOMERS)
+            return false;
+         for (Long room : eldest.getValue().rooms())
+            unindexRoom(room, eldest.getKey());
+         return true;
+      }
+   });
+
+   // customers that may hold a booking of a room, by room key
+   private final ConcurrentHashMap<Long, Set<Integer>> _roomCustomers = new ConcurrentHashMap<Long, Set<Integer>>();
+
+   public RecentBookings(ShardRouter router) {
+      this._router = router;
+   }//end RecentBookings
+
+   /**
+    * Returns the hotelID, roomNumber, price and bookingDate of a
+    * customer's most recent bookings, most recent first.
+    *
+    * @param customerID the customer
+    * @throws java.sql.SQLException when failed to load the customer
+    */
+   public QueryResult get(int customerID) throws SQLException {
+      Buffer buffer = this._customers.get(customerID);
+      if (buffer == null || !buffer.isLoaded())
+         buffer = load(customerID);
+      return new QueryResult(Arrays.asList("hotelid", "roomnumber", "price", "bookingdate"), buffer.rows());
+   }//end get
+
+   /**
+    * Loads a customer from the database.  The empty buffer is registered
+    * first so that bookings committed while the query runs are not lost,
+    * they are either in the query result or delivered to the buffer.
+    */
+   private Buffer load(int customerID) throws SQLException {
+      Buffer buffer = new Buffer();
+      this._customers.put(customerID, buffer);
+      QueryResult rs = this._router.scatter(String.format(
+         "SELECT RoomBookings.hotelID, RoomBookings.roomNumber, Rooms.price, RoomBookings.bookingDate, RoomBookings.bookingID FROM Rooms,RoomBookings WHERE RoomBookings.customerID = %d AND RoomBookings.roomNumber = Rooms.roomNumber AND RoomBookings.hotelID = Rooms.hotelID ORDER BY RoomBookings.bookingDate DESC LIMIT %d",
+         customerID, LIMIT), QueryResult.orderBy(3, true), LIMIT);
+      for (List<String> record : rs.getRows()){
+         int hotelID = Integer.parseInt(record.get(0));
+         int roomNumber = Integer.parseInt(record.get(1));
+         buffer.add(Integer.parseInt(record.get(4)), hotelID, roomNumber, Integer.parseInt(record.get(2)), record.get(3), LOADED, 0);
+         indexRoom(roomKey(hotelID, roomNumber), customerID);
+      }//end for
+      buffer.setLoaded();
+      return buffer;
+   }//end load
+
+   public void onChange(ChangeEvent event) {
+      if (ChangeEvent.BOOKING.equals(event.getEventType())){
+         // customers not in memory get the booking from the database later
+         Buffer buffer = this._customers.get(event.getUserID());
+         if (buffer != null && event.getPrice() != null){
+            Long dropped = buffer.add(event.getRefID(), event.getHotelID(), event.getRoomNumber(), event.getPrice(), event.getEventDate(),
+               event.getShard(), event.getEventID());
+            indexRoom(roomKey(event.getHotelID(), event.getRoomNumber()), event.getUserID());
+            if (dropped != null && !buffer.rooms().contains(dropped))
+               unindexRoom(dropped, event.getUserID());
+         }//end if
+      }else if (ChangeEvent.ROOM_UPDATE.equals(event.getEventType()) && event.getPrice() != null){
+         Long key = roomKey(event.getHotelID(), event.getRoomNumber());
+         Set<Integer> customers = this._roomCustomers.get(key);
+         if (customers == null)
+            return;
+         for (Integer customerID : customers){
+            Buffer buffer = this._customers.get(customerID);
+            // drop customers that were reloaded without the room
+            if (buffer == null || !buffer.setPrice(event))
+               unindexRoom(key, customerID);
+         }//end for
+      }//end if
+   }//end onChange
+
+   private synchronized void indexRoom(Long key, int customerID) {
+      Set<Integer> customers = this._roomCustomers.get(key);
+      if (customers == null){
+         customers = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+         this._roomCustomers.put(key, customers);
+      }//end if
+      customers.add(customerID);
+   }//end indexRoom
+
+   /**
+    * Removes a customer whose buffer no longer holds the room, or was
+    * evicted, from the room's index entry.
+    */
+   private synchronized void unindexRoom(Long key, int customerID) {
+      Set<Integer> customers = this._roomCustomers.get(key);
+      if (customers == null)
+         return;
+      customers.remove(customerID);
+      if (customers.isEmpty())
+         this._roomCustomers.remove(key);
+   }//end unindexRoom
+
+   private static Long roomKey(int hotelID, int roomNumber) {
+      return ((long) hotelID << 32) | (roomNumber & 0xffffffffL);
+   }
+
+   /**
+    * The LIMIT most recent bookings of one customer, ordered by bookingDate
+    * descending.  Adding a booking is a constant time insertion into the
+    * short sorted array that drops the oldest booking.
+    */
+   private static class Buffer {
+      private final int[] _bookingIDs = new int[LIMIT];
+      private final int[] _hotelIDs = new int[LIMIT];
+      private final int[] _roomNumbers = new int[LIMIT];
+      private final int[] _prices = new int[LIMIT];
+      private final String[] _dates = new String[LIMIT];
+      // shard and eventID of the change that set each price
+      private final int[] _priceShards = new int[LIMIT];
+      private final long[] _priceEventIDs = new long[LIMIT];
+      private int _size = 0;
+      private volatile boolean _loaded = false;
+
+      boolean isLoaded() { return this._loaded; }
+
+      void setLoaded() { this._loaded = true; }
+
+      /**
+       * Adds a booking unless it is older than all LIMIT bookings held.
+       * The price is stamped with the shard and eventID it was read at,
+       * LOADED for a price read from the database.
+       *
+       * @return the room key of the booking dropped to make room, or null
+       */
+      synchronized Long add(int bookingID, int hotelID, int roomNumber, int price, String date, int shard, long eventID) {
+         for (int i = 0; i < this._size; i++)
+            if (this._bookingIDs[i] == bookingID)
+               return null;
+         int at = this._size;
+         while (at > 0 && this._dates[at - 1].compareTo(date) < 0)
+            at--;
+         if (at == LIMIT)
+            return null;
+         Long dropped = this._size == LIMIT ? roomKey(this._hotelIDs[LIMIT - 1], this._roomNumbers[LIMIT - 1]) : null;
+         int last = Math.min(this._size, LIMIT - 1);
+         for (int i = last; i > at; i--){
+            this._bookingIDs[i] = this._bookingIDs[i - 1];
+            this._hotelIDs[i] = this._hotelIDs[i - 1];
+            this._roomNumbers[i] = this._roomNumbers[i - 1];
+            this._prices[i] = this._prices[i - 1];
+            this._dates[i] = this._dates[i - 1];
+            this._priceShards[i] = this._priceShards[i - 1];
+            this._priceEventIDs[i] = this._priceEventIDs[i - 1];
+         }//end for
+         this._bookingIDs[at] = bookingID;
+         this._hotelIDs[at] = hotelID;
+         this._roomNumbers[at] = roomNumber;
+         this._prices[at] = price;
+         this._dates[at] = date;
+         this._priceShards[at] = shard;
+         this._priceEventIDs[at] = eventID;
+         this._size = last + 1;
+         return dropped;
+      }//end add
+
+      /**
+       * Copies the price of a room update into the bookings of the room,
+       * unless they hold a price of a later change.
+       *
+       * @return false when the buffer holds no booking of the room
+       */
+      synchronized boolean setPrice(ChangeEvent event) {
+         boolean found = false;
+         for (int i = 0; i < this._size; i++){
+            if (this._hotelIDs[i] == event.getHotelID() && this._roomNumbers[i] == event.getRoomNumber()){
+               if (event.isAfter(this._priceShards[i], this._priceEventIDs[i])){
+                  this._prices[i] = event.getPrice();
+                  this._priceShards[i] = event.getShard();
+                  this._priceEventIDs[i] = event.getEventID();
+               }//end if
+               found = true;
+            }//end if
+         }//end for
+         return found;
+      }//end setPrice
+
+      // room keys of the bookings held
+      synchronized List<Long> rooms() {
+         List<Long> rooms = new ArrayList<Long>();
+         for (int i = 0; i < this._size; i++)
+            rooms.add(roomKey(this._hotelIDs[i], this._roomNumbers[i]));
+         return rooms;
+      }//end rooms
+
+      synchronized List<List<String>> rows() {
+         List<List<String>> rows = new ArrayList<List<String>>();
+         for (int i = 0; i < this._size; i++)
+            rows.add(Arrays.asList(String.valueOf(this._hotelIDs[i]), String.valueOf(this._roomNumbers[i]),
+               String.valueOf(this._prices[i]), this._dates[i]));
+         return rows;
+      }//end rows
+   }//end Buffer
+}//end RecentBookings
@@ -0,0 +1,199 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class caches the results of the manager reports.  Every hotel has a
+ * version counter that is bumped by each booking, room update and repair
+ * of the hotel, whether made by this application or seen on the change
+ * feed, and a global counter is bumped by all of them.  A cached result
+ * remembers the versions of the hotels it was computed from (or the global
+ * version when it spans all hotels) and is only served while they are
+ * unchanged.  Results also expire after TTL_MILLIS, for changes made
+ * outside the application, and the least recently used results are
+ * evicted beyond MAX_ENTRIES.
+ *
+ * Lookups that reports build on, such as the hotels of a manager, are
+ * kept apart: no change event covers them, so they only expire after
+ * TTL_MILLIS, and they are not counted in the stats.
+ *
+ */
+public class ReportCache implements ChangeListener {
+
+   private static final long TTL_MILLIS = 60000;
+   private static final int MAX_ENTRIES = 1000;
+
+   private final ConcurrentHashMap<Integer, AtomicLong> _hotelVersions = new ConcurrentHashMap<Integer, AtomicLong>();
+   private final AtomicLong _globalVersion = new AtomicLong();
+
+   private final Map<String, CachedResult> _entries = new LinkedHashMap<String, CachedResult>(64, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+         if (size() <= MAX_ENTRIES)
+            return false;
+         _evictions.incrementAndGet();
+         return true;
+      }
+   };
+
+   private final Map<String, CachedResult> _lookups = new LinkedHashMap<String, CachedResult>(64, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+         return size() > MAX_ENTRIES;
+      }
+   };
+
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+   private final AtomicLong _invalidations = new AtomicLong();
+   private final AtomicLong _expirations = new AtomicLong();
+   private final AtomicLong _evictions = new AtomicLong();
+
+   /**
+    * The versions a result depends on, taken before its query runs so that
+    * a change committed while it runs makes the result stale.
+    */
+   public static class Versions {
+      // null when the result depends on all hotels
+      private final Integer[] _hotels;
+      private final long[] _versions;
+
+      private Versions(Integer[] hotels, long[] versions) {
+         this._hotels = hotels;
+         this._versions = versions;
+      }
+   }//end Versions
+
+   private static class CachedResult {
+      final Versions versions;
+      final long createdAt;
+      final QueryResult result;
+
+      CachedResult(Versions versions, QueryResult result) {
+         this.versions = versions;
+         this.createdAt = System.currentTimeMillis();
+         this.result = result;
+      }
+   }//end CachedResult
+
+   /**
+    * Returns the current versions of the given hotels, or of all hotels
+    * when hotels is null.
+    */
+   public Versions versions(Collection<Integer> hotels) {
+      if (hotels == null)
+         return new Versions(null, new long[] { this._globalVersion.get() });
+      Integer[] sorted = new TreeSet<Integer>(hotels).toArray(new Integer[0]);
+      long[] versions = new long[sorted.length];
+      for (int i = 0; i < sorted.length; i++)
+         versions[i] = version(sorted[i]).get();
+      return new Versions(sorted, versions);
+   }//end versions
+
+   /**
+    * Returns the cached result for a key, or null when there is none or it
+    * is stale.
+    */
+   public synchronized QueryResult get(String key) {
+      CachedResult entry = this._entries.get(key);
+      if (entry == null){
+         this._misses.incrementAndGet();
+         return null;
+      }//end if
+      if (System.currentTimeMillis() - entry.createdAt > TTL_MILLIS){
+         this._entries.remove(key);
+         this._expirations.incrementAndGet();
+         this._misses.incrementAndGet();
+         return null;
+      }//end if
+      if (!isCurrent(entry.versions)){
+         this._entries.remove(key);
+         this._invalidations.incrementAndGet();
+         this._misses.incrementAndGet();
+         return null;
+      }//end if
+      this._hits.incrementAndGet();
+      return entry.result;
+   }//end get
+
+   /**
+    * Caches a result computed from the data at the given versions.
+    */
+   public synchronized void put(String key, Versions versions, QueryResult result) {
+      this._entries.put(key, new CachedResult(versions, result));
+   }//end put
+
+   /**
+    * Returns the cached lookup for a key, or null when there is none or it
+    * is older than TTL_MILLIS.
+    */
+   public synchronized QueryResult getLookup(String key) {
+      CachedResult entry = this._lookups.get(key);
+      if (entry == null || System.currentTimeMillis() - entry.createdAt > TTL_MILLIS){
+         this._lookups.remove(key);
+         return null;
+      }//end if
+      return entry.result;
+   }//end getLookup
+
+   public synchronized void putLookup(String key, QueryResult result) {
+      this._lookups.put(key, new CachedResult(null, result));
+   }
+
+   private boolean isCurrent(Versions versions) {
+      if (versions._hotels == null)
+         return versions._versions[0] == this._globalVersion.get();
+      for (int i = 0; i < versions._hotels.length; i++)
+         if (versions._versions[i] != version(versions._hotels[i]).get())
+            return false;
+      return true;
+   }//end isCurrent
+
+   private AtomicLong version(int hotelID) {
+      AtomicLong version = this._hotelVersions.get(hotelID);
+      if (version == null){
+         this._hotelVersions.putIfAbsent(hotelID, new AtomicLong());
+         version = this._hotelVersions.get(hotelID);
+      }//end if
+      return version;
+   }//end version
+
+   /**
+    * Marks the results depending on a hotel as stale.
+    */
+   public void bump(int hotelID) {
+      version(hotelID).incrementAndGet();
+      this._globalVersion.incrementAndGet();
+   }//end bump
+
+   public void onChange(ChangeEvent event) {
+      bump(event.getHotelID());
+   }
+
+   /**
+    * Returns the hit, miss, invalidation, expiration and eviction counts.
+    */
+   public synchronized QueryResult stats() {
+      long lookups = this._hits.get() + this._misses.get();
+      return new QueryResult(Arrays.asList("entries", "hits", "misses", "hitratio", "invalidations", "expirations", "evictions"),
+         Collections.singletonList(Arrays.asList(String.valueOf(this._entries.size()), String.valueOf(this._hits.get()),
+            String.valueOf(this._misses.get()), lookups == 0 ? "0" : String.format("%.2f", (double) this._hits.get() / lookups),
+            String.valueOf(this._invalidations.get()), String.valueOf(this._expirations.get()), String.valueOf(this._evictions.get()))));
+   }//end stats
+}//end ReportCache
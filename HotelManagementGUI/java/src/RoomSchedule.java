@@ -0,0 +1,181 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * This class keeps, per room, an interval tree of its bookings and one of
+ * its repair windows, so bookRooms can refuse rooms under repair and
+ * placeRoomRepairRequests can flag booked days without a query, and the
+ * conflicts of a whole hotel can be listed without a nested loop join.
+ *
+ * A hotel is loaded with one scan of its bookings and one of its repairs
+ * on first use and is then kept current from the changes of this process
+ * as they commit and from the change feed for the others.  At most
+ * MAX_HOTELS hotels are kept, the least recently used are dropped first
+ * and loaded again when next used.
+ *
+ */
+public class RoomSchedule implements ChangeListener {
+
+   // hotels kept in memory
+   private static final int MAX_HOTELS = 1000;
+
+   private final ShardRouter _router;
+
+   private final Map<Integer, HotelSchedule> _hotels = Collections.synchronizedMap(new LinkedHashMap<Integer, HotelSchedule>(64, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Integer, HotelSchedule> eldest) {
+         return size() > MAX_HOTELS;
+      }
+   });
+
+   public RoomSchedule(ShardRouter router) {
+      this._router = router;
+   }//end RoomSchedule
+
+   /**
+    * Returns true when the room has a repair scheduled on the given day.
+    */
+   public boolean isUnderRepair(int hotelID, int roomNumber, int day) throws SQLException {
+      return hotel(hotelID).overlaps(true, roomNumber, day, day);
+   }//end isUnderRepair
+
+   /**
+    * Returns the bookingID and bookingDate of the bookings of a room
+    * during [startDay, endDay].
+    */
+   public QueryResult bookingsDuring(int hotelID, int roomNumber, int startDay, int endDay) throws SQLException {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (int[] booking : hotel(hotelID).overlapping(false, roomNumber, startDay, endDay))
+         rows.add(Arrays.asList(String.valueOf(booking[2]), CatalogSnapshot.date(booking[0])));
+      return new QueryResult(Arrays.asList("bookingid", "bookingdate"), rows);
+   }//end bookingsDuring
+
+   /**
+    * Returns every booking of a hotel that falls in a repair window, for the
+    * part of the windows within [startDay, endDay], ordered by room.
+    */
+   public QueryResult conflicts(int hotelID, int startDay, int endDay) throws SQLException {
+      HotelSchedule schedule = hotel(hotelID);
+      List<List<String>> rows = new ArrayList<List<String>>();
+      synchronized (schedule){
+         for (Map.Entry<Integer, IntervalTree> room : schedule.repairs.entrySet()){
+            IntervalTree bookings = schedule.bookings.get(room.getKey());
+            if (bookings == null)
+               continue;
+            for (int[] repair : room.getValue().overlapping(startDay, endDay)){
+               int from = Math.max(repair[0], startDay);
+               int to = Math.min(repair[1], endDay);
+               for (int[] booking : bookings.overlapping(from, to))
+                  rows.add(Arrays.asList(String.valueOf(room.getKey()), String.valueOf(repair[2]), CatalogSnapshot.date(repair[0]),
+                     CatalogSnapshot.date(repair[1]), String.valueOf(booking[2]), CatalogSnapshot.date(booking[0])));
+            }//end for
+         }//end for
+      }//end synchronized
+      return new QueryResult(Arrays.asList("roomnumber", "repairid", "repairdate", "repairenddate", "bookingid", "bookingdate"), rows);
+   }//end conflicts
+
+   public void onChange(ChangeEvent event) {
+      // hotels not in memory read the change from the database when loaded
+      HotelSchedule schedule = this._hotels.get(event.getHotelID());
+      if (schedule == null)
+         return;
+      if (ChangeEvent.BOOKING.equals(event.getEventType())){
+         int day = CatalogSnapshot.epochDay(event.getEventDate());
+         schedule.add(false, event.getRoomNumber(), day, day, event.getRefID());
+      }else if (ChangeEvent.REPAIR.equals(event.getEventType())){
+         String end = event.getEventEndDate() == null ? event.getEventDate() : event.getEventEndDate();
+         schedule.add(true, event.getRoomNumber(), CatalogSnapshot.epochDay(event.getEventDate()), CatalogSnapshot.epochDay(end), event.getRefID());
+      }//end if
+   }//end onChange
+
+   /**
+    * Returns the schedule of a hotel, loading it on first use.  The empty
+    * schedule is registered before the scans so that changes committed
+    * meanwhile are either scanned or delivered; adding one twice is
+    * harmless.  A hotel that does not exist gets an empty schedule that is
+    * not kept.
+    */
+   private HotelSchedule hotel(int hotelID) throws SQLException {
+      HotelSchedule schedule = this._hotels.get(hotelID);
+      if (schedule != null && schedule.loaded)
+         return schedule;
+      schedule = new HotelSchedule();
+
+      Statement stmt = this._router.connectionFor(hotelID).createStatement ();
+      try{
+         ResultSet rs = stmt.executeQuery (String.format("SELECT hotelID FROM Hotel WHERE hotelID = %d", hotelID));
+         if (!rs.next())
+            return schedule;
+         this._hotels.put(hotelID, schedule);
+
+         rs = stmt.executeQuery (String.format("SELECT roomNumber, bookingDate, bookingID FROM RoomBookings WHERE hotelID = %d", hotelID));
+         while (rs.next()){
+            int day = CatalogSnapshot.epochDay(rs.getString(2));
+            schedule.add(false, rs.getInt(1), day, day, rs.getInt(3));
+         }//end while
+         rs = stmt.executeQuery (String.format("SELECT roomNumber, repairDate, COALESCE(repairEndDate, repairDate), repairID FROM RoomRepairs WHERE hotelID = %d", hotelID));
+         while (rs.next())
+            schedule.add(true, rs.getInt(1), CatalogSnapshot.epochDay(rs.getString(2)), CatalogSnapshot.epochDay(rs.getString(3)), rs.getInt(4));
+      }catch (SQLException e){
+         this._hotels.remove(hotelID);
+         throw e;
+      }finally{
+         stmt.close ();
+      }//end try
+      schedule.loaded = true;
+      return schedule;
+   }//end hotel
+
+   private static class HotelSchedule {
+      final Map<Integer, IntervalTree> bookings = new TreeMap<Integer, IntervalTree>();
+      final Map<Integer, IntervalTree> repairs = new TreeMap<Integer, IntervalTree>();
+      // bookingIDs and repairIDs added, so adding one twice changes nothing
+      final Set<Integer> bookingIDs = new HashSet<Integer>();
+      final Set<Integer> repairIDs = new HashSet<Integer>();
+      volatile boolean loaded = false;
+
+      synchronized void add(boolean repair, int roomNumber, int startDay, int endDay, int id) {
+         if (!(repair ? this.repairIDs : this.bookingIDs).add(id))
+            return;
+         Map<Integer, IntervalTree> rooms = repair ? this.repairs : this.bookings;
+         IntervalTree tree = rooms.get(roomNumber);
+         if (tree == null){
+            tree = new IntervalTree();
+            rooms.put(roomNumber, tree);
+         }//end if
+         tree.insert(startDay, endDay, id);
+      }//end add
+
+      synchronized boolean overlaps(boolean repair, int roomNumber, int startDay, int endDay) {
+         IntervalTree tree = (repair ? this.repairs : this.bookings).get(roomNumber);
+         return tree != null && tree.overlaps(startDay, endDay);
+      }//end overlaps
+
+      synchronized List<int[]> overlapping(boolean repair, int roomNumber, int startDay, int endDay) {
+         IntervalTree tree = (repair ? this.repairs : this.bookings).get(roomNumber);
+         return tree == null ? new ArrayList<int[]>() : tree.overlapping(startDay, endDay);
+      }//end overlapping
+   }//end HotelSchedule
+}//end RoomSchedule
@@ -0,0 +1,86 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Command line tool that moves a hotel to another shard while the
+ * application keeps running.  See ShardRouter.moveHotel.  Given "spread"
+ * instead of a hotel it moves every hotel still on the primary to shard
+ * (hotelID mod number of shards), which splits a freshly loaded database
+ * over new shards; hotels already moved are left where they are, so it
+ * can be rerun after adding more shards or after a failure.
+ *
+ */
+public class ShardRebalancer {
+
+   public static void main (String[] args) {
+      if (args.length != 6 && !(args.length == 5 && args[4].equals("spread"))) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            ShardRebalancer.class.getName () +
+            " <dbname> <port> <user> <shard config> <hotelID> <target shard> | spread");
+         return;
+      }//end if
+
+      Connection primary = null;
+      ShardRouter router = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         String url = ShardRouter.url(args[0], args[1]);
+         primary = DriverManager.getConnection(url, args[2], "");
+         router = new ShardRouter(primary, url, args[2], "");
+         router.addShards(args[3], "");
+
+         if (args.length == 5){
+            spread(router);
+            return;
+         }//end if
+         int hotelID = Integer.parseInt(args[4]);
+         int target = Integer.parseInt(args[5]);
+         int source = router.shardOf(hotelID);
+         System.out.print("Moving hotel " + hotelID + " from shard " + source + " to shard " + target + "...");
+         router.moveHotel(hotelID, target);
+         System.out.println("Done");
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if (router != null)
+            router.close();
+         try{
+            if (primary != null)
+               primary.close();
+         }catch (Exception e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
+
+   private static void spread(ShardRouter router) throws SQLException {
+      int count = router.shardCount();
+      QueryResult hotels = QueryResult.fetch(router.primary(), "SELECT hotelID FROM Hotel ORDER BY hotelID");
+      for (List<String> record : hotels.getRows()){
+         int hotelID = Integer.parseInt(record.get(0));
+         int target = hotelID % count;
+         if (target == 0 || router.shardOf(hotelID) != 0)
+            continue;
+         System.out.print("Moving hotel " + hotelID + " from shard 0 to shard " + target + "...");
+         router.moveHotel(hotelID, target);
+         System.out.println("Done");
+      }//end for
+   }//end spread
+}//end ShardRebalancer
@@ -0,0 +1,410 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class spreads the hotel owned tables (Hotel, Rooms, RoomBookings,
+ * RoomRepairs, RoomRepairRequests and RoomUpdatesLog) over several
+ * PostgreSQL databases using hotelID as the shard key.
+ *
+ * Shard 0 is the primary database: it keeps the HotelShardMap directory and
+ * is the master copy of Users and MaintenanceCompany, which every shard
+ * holds a copy of so the foreign keys and joins keep working locally.  A
+ * hotel lives on the primary unless the directory places it on another
+ * shard, so a database loaded with load_data.sql keeps working as shards
+ * are added.  Hotels only change shard through moveHotel, e.g. when
+ * ShardRebalancer spreads the hotels of the primary over the shards.
+ *
+ */
+public class ShardRouter {
+
+   // how long a loaded copy of the directory is trusted, in milliseconds
+   private static final long DIRECTORY_REFRESH_MILLIS = 10000;
+
+   // tables owned by a hotel, in foreign key order, with the rows of hotel %1$d
+   private static final String[][] HOTEL_TABLES = {
+      { "Hotel", "hotelID = %1$d" },
+      { "Rooms", "hotelID = %1$d" },
+      { "RoomBookings", "hotelID = %1$d" },
+      { "RoomRepairs", "hotelID = %1$d" },
+      { "RoomRepairRequests", "repairID IN (SELECT repairID FROM RoomRepairs WHERE hotelID = %1$d)" },
+      { "RoomUpdatesLog", "hotelID = %1$d" }
+   };
+
+   // physical connections, shard i is at index i
+   private final List<Connection> _shards = new ArrayList<Connection>();
+
+   // connection URL, user and password of every shard
+   private final List<String[]> _logins = new ArrayList<String[]>();
+
+   // hotels placed on a shard other than the primary
+   private volatile Map<Integer, Integer> _directory = new ConcurrentHashMap<Integer, Integer>();
+   private volatile long _directoryLoadedAt = 0;
+
+   // runs the per shard parts of a scatter-gather query
+   private ExecutorService _pool = null;
+
+   /**
+    * Creates a router whose only shard is the given primary connection.
+    *
+    * @param primary the physical connection to the primary database
+    * @param url the connection URL of the primary database
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    */
+   public ShardRouter(Connection primary, String url, String user, String passwd) {
+      this._shards.add(primary);
+      this._logins.add(new String[] { url, user, passwd });
+   }//end ShardRouter
+
+   public static String url(String dbname, String dbport) {
+      return "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+   }
+
+   /**
+    * Connects to the shards listed in a configuration file.  Every non
+    * empty line that does not start with '#' holds "<dbname> <port> <user>"
+    * and the lines are shards 1, 2, ... in order.
+    *
+    * @param configFile the shard configuration file
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public void addShards(String configFile, String passwd) throws IOException, SQLException {
+      BufferedReader reader = new BufferedReader(new FileReader(configFile));
+      try{
+         String line;
+         while ((line = reader.readLine()) != null){
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#"))
+               continue;
+            String[] fields = line.split("\\s+");
+            if (fields.length != 3)
+               throw new IOException("Invalid shard line: " + line);
+            addShard(url(fields[0], fields[1]), fields[2], passwd);
+         }//end while
+      }finally{
+         reader.close();
+      }//end try
+      refreshDirectory();
+   }//end addShards
+
+   public void addShard(String url, String user, String passwd) throws SQLException {
+      System.out.println ("Shard " + this._shards.size() + " URL: " + url);
+      this._shards.add(DriverManager.getConnection(url, user, passwd));
+      this._logins.add(new String[] { url, user, passwd });
+   }//end addShard
+
+   public int shardCount() {
+      return this._shards.size();
+   }
+
+   public Connection primary() {
+      return this._shards.get(0);
+   }
+
+   public Connection shard(int shard) {
+      return this._shards.get(shard);
+   }
+
+   /**
+    * Opens a new physical connection to a shard, for work that runs on its
+    * own thread and so cannot share the interactive connection.  The
+    * caller closes it.
+    */
+   public Connection openConnection(int shard) throws SQLException {
+      String[] login = this._logins.get(shard);
+      return DriverManager.getConnection(login[0], login[1], login[2]);
+   }//end openConnection
+
+   /**
+    * Returns the shard that owns the rows of the given hotel.
+    */
+   public int shardOf(int hotelID) {
+      int count = this._shards.size();
+      if (count == 1)
+         return 0;
+      if (System.currentTimeMillis() - this._directoryLoadedAt > DIRECTORY_REFRESH_MILLIS)
+         refreshDirectory();
+      Integer placed = this._directory.get(hotelID);
+      if (placed != null && placed < count)
+         return placed;
+      return 0;
+   }//end shardOf
+
+   /**
+    * Returns the shards that actually hold a Hotel row for the given hotel,
+    * which is more than one only after a move whose cleanup failed.
+    */
+   public List<Integer> shardsHolding(int hotelID) throws SQLException {
+      List<Integer> shards = new ArrayList<Integer>();
+      for (int i = 0; i < this._shards.size(); i++)
+         if (QueryResult.fetch(this._shards.get(i), String.format("SELECT hotelID FROM Hotel WHERE hotelID = %d", hotelID)).size() > 0)
+            shards.add(i);
+      return shards;
+   }//end shardsHolding
+
+   public Connection connectionFor(int hotelID) {
+      return this._shards.get(shardOf(hotelID));
+   }
+
+   /**
+    * Reloads the HotelShardMap directory from the primary database, so that
+    * moves made by the rebalancing tool in another process are picked up.
+    */
+   public void refreshDirectory() {
+      try{
+         QueryResult pins = QueryResult.fetch(primary(), "SELECT hotelID, shardID FROM HotelShardMap");
+         // readers on other threads see the old or the new directory, never a partial one
+         Map<Integer, Integer> directory = new ConcurrentHashMap<Integer, Integer>();
+         for (List<String> pin : pins.getRows())
+            directory.put(Integer.parseInt(pin.get(0)), Integer.parseInt(pin.get(1)));
+         this._directory = directory;
+      }catch (SQLException e){
+         // no directory table, every hotel is on the primary.
+      }//end try
+      this._directoryLoadedAt = System.currentTimeMillis();
+   }//end refreshDirectory
+
+   /**
+    * Runs the same query on every shard in parallel and merges the partial
+    * results.  The query should already order and limit its own rows, the
+    * order and limit given here are then applied to the merged rows.
+    *
+    * @param query the input query string
+    * @param order the order of the merged rows, or null for shard order
+    * @param limit the maximum number of merged rows, or 0 for all rows
+    * @return the merged result
+    * @throws java.sql.SQLException when failed to execute the query on a shard
+    */
+   public QueryResult scatter(final String query, Comparator<List<String>> order, int limit) throws SQLException {
+      List<QueryResult> parts = new ArrayList<QueryResult>();
+      if (this._shards.size() == 1){
+         parts.add(QueryResult.fetch(primary(), query));
+         return QueryResult.merge(parts, order, limit);
+      }//end if
+
+      List<Future<QueryResult>> futures = new ArrayList<Future<QueryResult>>();
+      for (final Connection shard : this._shards){
+         futures.add(pool().submit(new Callable<QueryResult>() {
+            public QueryResult call() throws SQLException {
+               return QueryResult.fetch(shard, query);
+            }
+         }));
+      }//end for
+      try{
+         for (Future<QueryResult> future : futures)
+            parts.add(future.get());
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while querying shards");
+      }catch (ExecutionException e){
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause().toString());
+      }//end try
+      return QueryResult.merge(parts, order, limit);
+   }//end scatter
+
+   private synchronized ExecutorService pool() {
+      if (this._pool == null){
+         this._pool = Executors.newFixedThreadPool(this._shards.size(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "shard-query");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }//end if
+      return this._pool;
+   }//end pool
+
+   /**
+    * Runs an update on every shard except the primary, used to keep the
+    * copies of the reference tables in step with the primary.
+    */
+   public void broadcastUpdate(String sql) throws SQLException {
+      for (int i = 1; i < this._shards.size(); i++)
+         execute(this._shards.get(i), sql);
+   }//end broadcastUpdate
+
+   /**
+    * Moves a hotel and all of its rows to another shard while the
+    * application keeps running.  The hotel's Hotel and Rooms rows are locked
+    * on the source shard for the whole move, so concurrent bookings, room
+    * updates and repairs of that hotel wait (their foreign key checks need
+    * those rows) while reads carry on.  The rows are copied and committed
+    * on the target, the directory is switched and the source rows are
+    * deleted.
+    *
+    * The source is the shard the directory names when it holds the hotel,
+    * otherwise the shard that does.  A move that fails before the directory
+    * is switched leaves the hotel where it was, and running it again first
+    * clears whatever the earlier attempt left on the target.  If only the
+    * final delete fails the hotel is already served from the target but its
+    * old rows stay on the source, where scatter queries see them twice;
+    * running the same move again deletes them.
+    *
+    * @param hotelID the hotel to move
+    * @param target the shard to move it to
+    * @throws java.sql.SQLException when the move or its cleanup failed
+    */
+   public void moveHotel(int hotelID, int target) throws SQLException {
+      if (target < 0 || target >= this._shards.size())
+         throw new SQLException("No such shard: " + target);
+      refreshDirectory();
+      List<Integer> holding = shardsHolding(hotelID);
+      int placed = shardOf(hotelID);
+      if (holding.isEmpty())
+         throw new SQLException("Hotel " + hotelID + " is on no shard");
+      if (placed == target && holding.contains(target)){
+         // already moved, delete what a failed cleanup left behind
+         for (Integer shard : holding)
+            if (shard != target)
+               deleteHotel(this._shards.get(shard), hotelID);
+         return;
+      }//end if
+      int source = holding.contains(placed) ? placed : holding.get(0);
+      if (source == target){
+         pinHotel(hotelID, target);
+         return;
+      }//end if
+
+      Connection src = this._shards.get(source);
+      Connection dst = this._shards.get(target);
+      src.setAutoCommit(false);
+      dst.setAutoCommit(false);
+      try{
+         if (QueryResult.fetch(src, String.format("SELECT hotelID FROM Hotel WHERE hotelID = %d FOR UPDATE", hotelID)).size() == 0)
+            throw new SQLException("Hotel " + hotelID + " is not on shard " + source);
+         QueryResult.fetch(src, String.format("SELECT roomNumber FROM Rooms WHERE hotelID = %d FOR UPDATE", hotelID));
+
+         List<QueryResult> rows = new ArrayList<QueryResult>();
+         for (String[] table : HOTEL_TABLES)
+            rows.add(QueryResult.fetch(src, String.format("SELECT * FROM %s WHERE %s", table[0], String.format(table[1], hotelID))));
+
+         for (int i = HOTEL_TABLES.length - 1; i >= 0; i--)
+            execute(dst, String.format("DELETE FROM %s WHERE %s", HOTEL_TABLES[i][0], String.format(HOTEL_TABLES[i][1], hotelID)));
+         for (int i = 0; i < HOTEL_TABLES.length; i++)
+            insertRows(dst, HOTEL_TABLES[i][0], rows.get(i));
+         dst.commit();
+
+         pinHotel(hotelID, target);
+      }catch (SQLException e){
+         rollback(dst);
+         rollback(src);
+         src.setAutoCommit(true);
+         dst.setAutoCommit(true);
+         throw e;
+      }//end try
+      dst.setAutoCommit(true);
+
+      // releases the locks; on failure the move is rerun to clean up
+      try{
+         for (int i = HOTEL_TABLES.length - 1; i >= 0; i--)
+            execute(src, String.format("DELETE FROM %s WHERE %s", HOTEL_TABLES[i][0], String.format(HOTEL_TABLES[i][1], hotelID)));
+         src.commit();
+      }catch (SQLException e){
+         rollback(src);
+         throw new SQLException("Hotel " + hotelID + " moved to shard " + target + " but its rows are still on shard "
+            + source + ", run the move again to delete them: " + e.getMessage());
+      }finally{
+         src.setAutoCommit(true);
+      }//end try
+   }//end moveHotel
+
+   private static void deleteHotel(Connection connection, int hotelID) throws SQLException {
+      connection.setAutoCommit(false);
+      try{
+         for (int i = HOTEL_TABLES.length - 1; i >= 0; i--)
+            execute(connection, String.format("DELETE FROM %s WHERE %s", HOTEL_TABLES[i][0], String.format(HOTEL_TABLES[i][1], hotelID)));
+         connection.commit();
+      }catch (SQLException e){
+         rollback(connection);
+         throw e;
+      }finally{
+         connection.setAutoCommit(true);
+      }//end try
+   }//end deleteHotel
+
+   private void pinHotel(int hotelID, int shard) throws SQLException {
+      execute(primary(), String.format("DELETE FROM HotelShardMap WHERE hotelID = %d", hotelID));
+      execute(primary(), String.format("INSERT INTO HotelShardMap (hotelID, shardID) VALUES (%d, %d)", hotelID, shard));
+      this._directory.put(hotelID, shard);
+   }//end pinHotel
+
+   private static void insertRows(Connection connection, String table, QueryResult rows) throws SQLException {
+      StringBuilder columns = new StringBuilder();
+      for (String column : rows.getColumns())
+         columns.append(columns.length() == 0 ? "" : ", ").append(column);
+      for (List<String> record : rows.getRows()){
+         StringBuilder values = new StringBuilder();
+         for (String value : record){
+            values.append(values.length() == 0 ? "" : ", ");
+            values.append(value == null ? "NULL" : "'" + value.replace("'", "''") + "'");
+         }//end for
+         execute(connection, String.format("INSERT INTO %s (%s) VALUES (%s)", table, columns, values));
+      }//end for
+   }//end insertRows
+
+   private static void execute(Connection connection, String sql) throws SQLException {
+      Statement stmt = connection.createStatement ();
+      try{
+         stmt.executeUpdate (sql);
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end execute
+
+   private static void rollback(Connection connection) {
+      try{
+         connection.rollback();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end rollback
+
+   /**
+    * Closes the shard connections other than the primary, which belongs to
+    * the Hotel instance that created the router.
+    */
+   public void close() {
+      if (this._pool != null)
+         this._pool.shutdownNow();
+      for (int i = 1; i < this._shards.size(); i++){
+         try{
+            this._shards.get(i).close();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end for
+   }//end close
+}//end ShardRouter
@@ -0,0 +1,10 @@
+#!/bin/bash
+#Creates shard number $1 in database $2 and copies the reference tables from the primary database.
+#The shard starts empty, hotels are moved onto it with ShardRebalancer.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+SHARD=$1
+SHARD_DB=$2
+psql -h localhost -p $PGPORT $SHARD_DB < $DIR/../src/create_tables.sql
+psql -h localhost -p $PGPORT $SHARD_DB < $DIR/../src/create_indexes.sql
+psql -h localhost -p $PGPORT -v shard=$SHARD $SHARD_DB < $DIR/../src/configure_shard.sql
+pg_dump -h localhost -p $PGPORT -a -t users -t maintenancecompany $USER"_DB" | psql -h localhost -p $PGPORT $SHARD_DB
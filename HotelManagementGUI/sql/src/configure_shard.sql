@@ -0,0 +1,6 @@
+--Gives every shard its own range of generated keys so that rows keep their keys when a hotel is moved.
+--Run with psql -v shard=<shard number>, shard 0 is the primary database and keeps the default ranges.
+SELECT setval('RoomBookings_bookingID_seq', :shard * 100000000 + 1, false);
+SELECT setval('roomRepairs_repairID_seq', :shard * 100000000 + 1, false);
+SELECT setval('roomRepairRequests_requestNumber_seq', :shard * 100000000 + 1, false);
+SELECT setval('roomUpdatesLog_updateNumber_seq', :shard * 100000000 + 1, false);
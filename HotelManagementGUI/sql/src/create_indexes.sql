@@ -22,6 +22,13 @@ CREATE INDEX roomBookings_roomNumber_index
 ON RoomBookings
 (roomNumber);
 
+CREATE INDEX roomBookings_customer_recent_index
+ON RoomBookings
+(customerID, bookingDate, hotelID, roomNumber, bookingID);
+
+CREATE INDEX roomRepairs_hotelID_index
+ON RoomRepairs
+(hotelID);
 
 CREATE INDEX users_userType_index
 ON Users
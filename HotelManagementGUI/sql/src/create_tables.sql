@@ -6,6 +6,9 @@ DROP TABLE IF EXISTS RoomBookings CASCADE;
 DROP TABLE IF EXISTS RoomRepairs CASCADE;
 DROP TABLE IF EXISTS RoomRepairRequests CASCADE;
 DROP TABLE IF EXISTS RoomUpdatesLog CASCADE;
+DROP TABLE IF EXISTS HotelShardMap CASCADE;
+DROP TABLE IF EXISTS ChangeOutbox CASCADE;
+DROP TABLE IF EXISTS ChangeFeedOffsets CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50),
@@ -59,7 +62,9 @@ CREATE TABLE RoomRepairs (
                             hotelID integer NOT NULL,
                             roomNumber integer NOT NULL, 
                             repairDate date NOT NULL,
+                            repairEndDate date,           ---last day of a repair lasting several days, NULL for one day
                             PRIMARY KEY(repairID),
+                            CHECK (repairEndDate > repairDate),
                             FOREIGN KEY(companyID) REFERENCES MaintenanceCompany(companyID),
                             FOREIGN KEY(hotelID, roomNumber) REFERENCES Rooms(hotelID, roomNumber)
 );
@@ -86,6 +91,39 @@ CREATE TABLE RoomUpdatesLog (
                             FOREIGN KEY(hotelID, roomNumber) REFERENCES Rooms(hotelID, roomNumber)
 );
 
+--The following table is the shard directory, it is only used on the primary database.
+--It places hotels moved by the rebalancing tool, other hotels live on shard 0, the primary database.
+CREATE TABLE HotelShardMap (
+                            hotelID integer NOT NULL,
+                            shardID integer NOT NULL,
+                            PRIMARY KEY(hotelID)
+);
+
+--The following table is the transactional outbox: every booking, room update and repair inserts a row
+--in the same transaction as the change itself, and the application's change feed tails it by eventID.
+CREATE TABLE ChangeOutbox (
+                            eventID serial,
+                            eventType char(12) NOT NULL,  ---'BOOKING', 'ROOM_UPDATE' or 'REPAIR'
+                            hotelID integer NOT NULL,
+                            roomNumber integer NOT NULL,
+                            userID integer NOT NULL,      ---customer for a booking, manager otherwise
+                            eventDate date,               ---booking or repair date
+                            eventEndDate date,            ---last day of a repair lasting several days
+                            price integer,                ---room price after the change
+                            refID integer NOT NULL,       ---bookingID, updateNumber or repairID
+                            createdOn timestamp NOT NULL DEFAULT now(),
+                            PRIMARY KEY(eventID)
+);
+
+--The following table stores how far each change feed consumer, i.e. each running application, has read the outbox.
+--Outbox rows below every consumer's lastEventID are deleted once old enough.
+CREATE TABLE ChangeFeedOffsets (
+                            consumerName char(30),
+                            lastEventID integer NOT NULL,
+                            updatedOn timestamp NOT NULL DEFAULT now(),  ---consumers not seen for a day are dropped
+                            PRIMARY KEY(consumerName)
+);
+
 ---The following is the definition of a user-defined sql function for calculating the distance between two lat-long pairs.
 CREATE OR REPLACE FUNCTION calculate_distance(lat1 decimal, long1 decimal, lat2 decimal, long2 decimal)
 RETURNS decimal AS $dist$
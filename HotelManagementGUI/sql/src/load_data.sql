@@ -20,7 +20,7 @@ FROM '/extra/lbola008/project/project/data/bookings.csv'
 WITH DELIMITER ',' CSV HEADER;
 ALTER SEQUENCE RoomBookings_bookingID_seq RESTART 501; 
 
-COPY RoomRepairs
+COPY RoomRepairs (repairID, companyID, hotelID, roomNumber, repairDate)
 FROM '/extra/lbola008/project/project/data/roomRepairs.csv'
 WITH DELIMITER ',' CSV HEADER;
 ALTER SEQUENCE roomRepairs_repairID_seq RESTART 11;